@@ -0,0 +1,89 @@
+package org.conscrypt;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Future;
+
+/**
+ * Guards the steady-state echo path against allocation regressions. For every endpoint type, a
+ * client streams messages to its server and reads back the echoes, and the bytes allocated by all
+ * threads in the process are divided by the number of messages. Each message is written, read,
+ * echoed and read back once, so the figure covers a full round trip on both endpoints. The replies
+ * are read in a single batch, so that the client's {@link Future} doesn't count.
+ *
+ * <p>Exits with a non-zero status if any endpoint type allocates more than its provider's budget,
+ * set in bytes per message with the {@code budget.CONSCRYPT} and {@code budget.JDK} system
+ * properties. Providers without a budget are only reported. What the providers allocate
+ * internally, such as an {@link javax.net.ssl.SSLEngineResult} per wrap and unwrap or the JDK's
+ * per-record cipher state, counts against the budget too, which is why it is per provider.
+ *
+ * <p>Arguments (all optional): messages measured per endpoint type and the message length.
+ */
+public class AllocationRateMain {
+  private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  public static void main(String[] args) {
+    try {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+      int messageLength = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+      if (!THREADS.isThreadAllocatedMemorySupported()) {
+        throw new IllegalStateException("Per-thread allocation counters are not supported");
+      }
+      THREADS.setThreadAllocatedMemoryEnabled(true);
+
+      boolean failed = false;
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        Long budget = Long.getLong("budget." + provider);
+        System.err.println(String.format("provider=%s, messageLength=%d, budget=%s bytes/msg",
+            provider, messageLength, budget != null ? budget : "none"));
+        for (EndpointType endpointType : EndpointType.values()) {
+          double bytesPerMessage = measure(endpointType.newFactory(provider.newProvider(),
+              new EndpointOptions().messageLength(messageLength)), messages);
+          boolean overBudget = budget != null && bytesPerMessage > budget;
+          failed |= overBudget;
+          System.err.println(String.format("endpoint=%s: %.1f bytes/msg%s",
+              endpointType, bytesPerMessage, overBudget ? " OVER BUDGET" : ""));
+        }
+      }
+      if (failed) {
+        System.exit(1);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static double measure(EndpointFactory factory, int messages) {
+    Server server = factory.newServer(false);
+    Future<?> serverStartFuture = server.start();
+    Client client = factory.newClient(server.port(), false);
+    try {
+      TestUtils.wait(client.start());
+      TestUtils.wait(serverStartFuture);
+
+      // Long enough for the JIT to have eliminated what escape analysis can.
+      StreamingMain.stream(client, messages);
+      long before = allocatedBytes();
+      StreamingMain.stream(client, messages);
+      return (double) (allocatedBytes() - before) / messages;
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  /**
+   * Returns the bytes allocated so far by all live threads.
+   */
+  private static long allocatedBytes() {
+    long total = 0;
+    for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) {
+      // -1 for threads that have exited since their IDs were listed.
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,99 @@
+package org.conscrypt;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.function.BiFunction;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * ALPN for engines and sockets of either provider. Conscrypt goes through its own API, and the
+ * JDK through {@link SSLParameters#setApplicationProtocols} and the related methods, which Java 9
+ * and later, as well as 8u252 and later, have. The project targets Java 8, so those are looked
+ * up reflectively; a JDK without them throws {@link UnsupportedOperationException}.
+ */
+final class Alpn {
+  static void setProtocols(SSLEngine engine, String... protocols) {
+    if (Conscrypt.isConscrypt(engine)) {
+      Conscrypt.setAlpnProtocols(engine, protocols);
+    } else {
+      SSLParameters parameters = engine.getSSLParameters();
+      setApplicationProtocols(parameters, protocols);
+      engine.setSSLParameters(parameters);
+    }
+  }
+
+  static void setProtocols(SSLSocket socket, String... protocols) {
+    if (Conscrypt.isConscrypt(socket)) {
+      Conscrypt.setAlpnProtocols(socket, protocols);
+    } else {
+      SSLParameters parameters = socket.getSSLParameters();
+      setApplicationProtocols(parameters, protocols);
+      socket.setSSLParameters(parameters);
+    }
+  }
+
+  static void setSelector(SSLEngine engine, BiFunction<SSLEngine, List<String>, String> selector) {
+    invoke(engine, SSLEngine.class, "setHandshakeApplicationProtocolSelector",
+        BiFunction.class, selector);
+  }
+
+  static void setSelector(SSLSocket socket, BiFunction<SSLSocket, List<String>, String> selector) {
+    invoke(socket, SSLSocket.class, "setHandshakeApplicationProtocolSelector",
+        BiFunction.class, selector);
+  }
+
+  static String selectedProtocol(SSLEngine engine) {
+    if (Conscrypt.isConscrypt(engine)) {
+      return Conscrypt.getAlpnSelectedProtocol(engine);
+    }
+    return (String) invoke(engine, SSLEngine.class, "getApplicationProtocol", null, null);
+  }
+
+  static String selectedProtocol(SSLSocket socket) {
+    if (Conscrypt.isConscrypt(socket)) {
+      return Conscrypt.getAlpnSelectedProtocol(socket);
+    }
+    return (String) invoke(socket, SSLSocket.class, "getApplicationProtocol", null, null);
+  }
+
+  private static void setApplicationProtocols(SSLParameters parameters, String[] protocols) {
+    invoke(parameters, SSLParameters.class, "setApplicationProtocols", String[].class,
+        (Object) protocols);
+  }
+
+  /**
+   * Calls a public method that takes at most one argument, preferring the declaration in
+   * {@code type}, since the implementation class may not be accessible, and falling back to the
+   * implementation class for Conscrypt on JDKs that don't declare the method.
+   */
+  private static Object invoke(Object target, Class<?> type, String name, Class<?> parameterType,
+      Object argument) {
+    Class<?>[] parameterTypes = parameterType == null ? new Class<?>[0]
+                                                      : new Class<?>[] {parameterType};
+    Object[] arguments = parameterType == null ? new Object[0] : new Object[] {argument};
+    Method method;
+    try {
+      method = type.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      try {
+        method = target.getClass().getMethod(name, parameterTypes);
+      } catch (NoSuchMethodException e2) {
+        throw new UnsupportedOperationException(
+            "ALPN requires Conscrypt or a JDK that supports it", e2);
+      }
+    }
+    try {
+      return method.invoke(target, arguments);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private Alpn() {
+  }
+}
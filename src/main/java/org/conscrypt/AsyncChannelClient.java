@@ -0,0 +1,174 @@
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+
+/**
+ * An engine-based client over an {@link AsynchronousSocketChannel} in the default channel group.
+ * It keeps a read outstanding at all times, so replies are consumed as they arrive whether or not
+ * anyone has asked for them yet. The futures complete on the group's threads.
+ */
+final class AsyncChannelClient implements Client, AsyncChannelConnection.Handler {
+  private final EngineWrapper engineWrapper;
+  private final int port;
+  private final boolean useAlpn;
+  private final CompletableFuture<Void> handshakeFuture = new CompletableFuture<>();
+  // Guarded by itself.
+  private final ArrayDeque<ReplyRequest> replyRequests = new ArrayDeque<>();
+  private int unclaimedReplies;
+  private Throwable closeCause;
+  private AsyncChannelConnection connection;
+
+  AsyncChannelClient(SSLContext context, EndpointOptions options, int port, boolean useAlpn) {
+    this.port = port;
+    this.useAlpn = useAlpn;
+
+    engineWrapper = new EngineWrapper(
+        EngineClient.newClientEngine(context, options, port, useAlpn), options);
+  }
+
+  @Override
+  public CompletableFuture<Void> start() {
+    try {
+      connection = new AsyncChannelConnection(
+          AsynchronousSocketChannel.open(), engineWrapper, this, false);
+      connection.connect(new InetSocketAddress("localhost", port));
+      return handshakeFuture;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public boolean sendMessage() {
+    try {
+      return connection.sendMessage();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> readReplies(int count, IntConsumer onReply) {
+    ReplyRequest request = new ReplyRequest(count, onReply);
+    synchronized (replyRequests) {
+      if (closeCause != null) {
+        request.future.completeExceptionally(closeCause);
+        return request.future;
+      }
+      for (; unclaimedReplies > 0 && !request.isDone(); unclaimedReplies--) {
+        request.replyReceived();
+      }
+      if (!request.isDone()) {
+        replyRequests.add(request);
+        return request.future;
+      }
+    }
+    request.future.complete(null);
+    return request.future;
+  }
+
+  @Override
+  public SSLSession session() {
+    return engineWrapper.engine().getSession();
+  }
+
+  @Override
+  public void stop() {
+    if (connection != null) {
+      connection.close();
+    }
+  }
+
+  @Override
+  public void handshakeComplete(AsyncChannelConnection connection) {
+    if (useAlpn) {
+      assertEquals(ALPN_PROTOCOL, Alpn.selectedProtocol(engineWrapper.engine()));
+    }
+    handshakeFuture.complete(null);
+  }
+
+  @Override
+  public void messagesReceived(AsyncChannelConnection connection, int count) {
+    List<ReplyRequest> done = null;
+    synchronized (replyRequests) {
+      for (int i = 0; i < count; i++) {
+        ReplyRequest request = replyRequests.peek();
+        if (request == null) {
+          unclaimedReplies += count - i;
+          break;
+        }
+        request.replyReceived();
+        if (request.isDone()) {
+          replyRequests.poll();
+          if (done == null) {
+            done = new ArrayList<>();
+          }
+          done.add(request);
+        }
+      }
+    }
+    // Complete outside the lock, dependent actions may call back into this client.
+    if (done != null) {
+      for (ReplyRequest request : done) {
+        request.future.complete(null);
+      }
+    }
+  }
+
+  @Override
+  public void closed(AsyncChannelConnection connection, Throwable cause) {
+    Throwable failure = cause != null ? cause : new ClosedChannelException();
+    List<ReplyRequest> pending;
+    synchronized (replyRequests) {
+      closeCause = failure;
+      pending = new ArrayList<>(replyRequests);
+      replyRequests.clear();
+    }
+    handshakeFuture.completeExceptionally(failure);
+    for (ReplyRequest request : pending) {
+      request.future.completeExceptionally(failure);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Client(type=%s, provider=%s, useAlpn=%b)", "AsyncChannel",
+        Conscrypt.isConscrypt(engineWrapper.engine()) ? "Conscrypt" : "JDK", useAlpn);
+  }
+
+  /**
+   * A call to {@link #readReplies} that is still waiting for some of its replies.
+   */
+  private static final class ReplyRequest {
+    private final int count;
+    private final IntConsumer onReply;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private int received;
+
+    ReplyRequest(int count, IntConsumer onReply) {
+      this.count = count;
+      this.onReply = onReply;
+    }
+
+    void replyReceived() {
+      onReply.accept(received++);
+    }
+
+    boolean isDone() {
+      return received == count;
+    }
+  }
+}
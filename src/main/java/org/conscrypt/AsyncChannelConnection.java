@@ -0,0 +1,329 @@
+package org.conscrypt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives an {@link EngineWrapper} over an {@link AsynchronousSocketChannel}. There is no thread
+ * per connection and no selector: the channel group's threads run the completion handlers, which
+ * unwrap whatever a read delivered and write out whatever the engine wrapped.
+ *
+ * <p>Reads go straight into the wrapper's inbound packet buffer. At most one read and one write
+ * are in flight at a time; records wrapped while a write is in flight wait in the wrapper's
+ * pending output, subject to its watermarks.
+ */
+final class AsyncChannelConnection {
+  /**
+   * Callbacks for connection events, invoked on a channel group thread. They must not block.
+   */
+  interface Handler {
+    void handshakeComplete(AsyncChannelConnection connection) throws IOException;
+
+    void messagesReceived(AsyncChannelConnection connection, int count) throws IOException;
+
+    /**
+     * Called once the connection has been closed, with the failure that closed it or
+     * {@code null} if the peer or the caller closed it.
+     */
+    void closed(AsyncChannelConnection connection, Throwable cause);
+  }
+
+  private final AsynchronousSocketChannel channel;
+  private final EngineWrapper engineWrapper;
+  private final Handler handler;
+  private final boolean throttleReads;
+  private final ChannelAdapter adapter = new ChannelAdapter();
+  private final ReadHandler readHandler = new ReadHandler();
+  private final WriteHandler writeHandler = new WriteHandler();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  // Counts the calls to schedule() that have yet to be processed. Whoever takes it from zero
+  // processes until it drops back to zero, so only one thread at a time touches the wrapper's
+  // input side.
+  private final AtomicInteger processRequests = new AtomicInteger();
+  // Set by process() when it starts a read and cleared when the read completes.
+  private volatile boolean readInFlight;
+  // Guards readPaused and is notified whenever the wrapper may have become writable.
+  private final Object lock = new Object();
+  private boolean readPaused;
+  private boolean handshakeComplete;
+
+  /**
+   * @param throttleReads whether to stop reading while the pending output is over the high
+   *     watermark. Servers should, since every message they read produces a reply. Clients must
+   *     keep reading, or a backed-up server could never drain their requests.
+   */
+  AsyncChannelConnection(AsynchronousSocketChannel channel, EngineWrapper engineWrapper,
+      Handler handler, boolean throttleReads) {
+    this.channel = channel;
+    this.engineWrapper = engineWrapper;
+    this.handler = handler;
+    this.throttleReads = throttleReads;
+    engineWrapper.onDelegatedTasksComplete(this::schedule);
+  }
+
+  EngineWrapper engineWrapper() {
+    return engineWrapper;
+  }
+
+  /**
+   * Connects the channel and then starts the handshake.
+   */
+  void connect(SocketAddress address) {
+    channel.connect(address, null, new CompletionHandler<Void, Void>() {
+      @Override
+      public void completed(Void result, Void attachment) {
+        start();
+      }
+
+      @Override
+      public void failed(Throwable e, Void attachment) {
+        close(e);
+      }
+    });
+  }
+
+  /**
+   * Starts the handshake on a connected channel.
+   */
+  void start() {
+    try {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      engineWrapper.beginHandshake();
+    } catch (IOException e) {
+      close(e);
+      return;
+    }
+    schedule();
+  }
+
+  /**
+   * Queues a single message without blocking. It is written out as the channel allows.
+   */
+  boolean queueMessage() throws IOException {
+    return engineWrapper.queueMessage(adapter);
+  }
+
+  /**
+   * Like {@link #queueMessage}, but first blocks until the pending output has drained below the
+   * low watermark if the previous call returned {@code false}. Must not be called from a handler.
+   */
+  boolean sendMessage() throws IOException {
+    synchronized (lock) {
+      while (!engineWrapper.isWritable()) {
+        if (closed.get()) {
+          throw new ClosedChannelException();
+        }
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+    }
+    return queueMessage();
+  }
+
+  void close() {
+    close(null);
+  }
+
+  void close(Throwable cause) {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      channel.close();
+      engineWrapper.close();
+    } catch (IOException ignored) {
+      // Ignored.
+    }
+    synchronized (lock) {
+      if (readPaused) {
+        // No read will complete, so nothing else releases the inbound buffer.
+        engineWrapper.releaseBuffers();
+      }
+      lock.notifyAll();
+    }
+    handler.closed(this, cause);
+  }
+
+  /**
+   * Runs {@link #process} on the calling thread, or, if another thread is already running it,
+   * has that thread run it once more. Read completions, delegated task completions and resumed
+   * reads can then race each other without two threads unwrapping at once or two reads being
+   * started.
+   */
+  private void schedule() {
+    if (processRequests.getAndIncrement() != 0) {
+      return;
+    }
+    do {
+      process();
+    } while (processRequests.decrementAndGet() != 0);
+  }
+
+  /**
+   * Unwraps everything the last read delivered and then reads again, unless a read is already in
+   * flight, the handshake is waiting for delegated tasks or the reads are being throttled. Only
+   * called through {@link #schedule}.
+   */
+  private void process() {
+    try {
+      int messages = engineWrapper.processInput(adapter);
+      if (!handshakeComplete && !engineWrapper.isHandshaking()) {
+        handshakeComplete = true;
+        handler.handshakeComplete(this);
+      }
+      if (messages > 0) {
+        handler.messagesReceived(this, messages);
+      }
+      if (engineWrapper.hasDelegatedTasksInFlight() || readInFlight) {
+        // The tasks' or the read's completion schedules the next round.
+        return;
+      }
+      synchronized (lock) {
+        if (throttleReads && !engineWrapper.isWritable()) {
+          readPaused = true;
+          return;
+        }
+      }
+      readInFlight = true;
+      read();
+    } catch (EOFException e) {
+      engineWrapper.releaseBuffers();
+      close();
+    } catch (Throwable e) {
+      engineWrapper.releaseBuffers();
+      close(e);
+    }
+  }
+
+  private void read() {
+    channel.read(engineWrapper.inboundPacketBuffer(), null, readHandler);
+  }
+
+  private final class ReadHandler implements CompletionHandler<Integer, Void> {
+    @Override
+    public void completed(Integer bytesRead, Void attachment) {
+      adapter.bytesRead = bytesRead;
+      readInFlight = false;
+      schedule();
+    }
+
+    @Override
+    public void failed(Throwable e, Void attachment) {
+      engineWrapper.releaseBuffers();
+      close(closed.get() ? null : e);
+    }
+  }
+
+  private final class WriteHandler implements CompletionHandler<Integer, ByteBuffer> {
+    @Override
+    public void completed(Integer bytesWritten, ByteBuffer buffer) {
+      if (buffer.hasRemaining()) {
+        channel.write(buffer, buffer, this);
+        return;
+      }
+      synchronized (adapter) {
+        adapter.writeInFlight = false;
+        if (adapter.writingThread == Thread.currentThread()) {
+          // The write completed immediately and this runs inside the adapter's write(), most
+          // likely within a flush. That caller carries on with whatever is pending.
+          return;
+        }
+      }
+
+      try {
+        // Hand over whatever was wrapped while this write was in flight.
+        engineWrapper.flush(adapter);
+      } catch (IOException e) {
+        close(e);
+        return;
+      }
+
+      boolean resumeReading;
+      synchronized (lock) {
+        resumeReading = readPaused && engineWrapper.isWritable();
+        if (resumeReading) {
+          readPaused = false;
+        }
+        lock.notifyAll();
+      }
+      if (resumeReading) {
+        schedule();
+      }
+    }
+
+    @Override
+    public void failed(Throwable e, ByteBuffer buffer) {
+      close(closed.get() ? null : e);
+    }
+  }
+
+  /**
+   * The channel the wrapper sees. Its reads report what the last completed read already put in
+   * the wrapper's inbound buffer. Its writes start an asynchronous write of a copy of the bytes,
+   * or accept nothing while one is in flight.
+   */
+  private final class ChannelAdapter implements ByteChannel {
+    // Only used by the thread that is processing input.
+    private int bytesRead;
+    // Guarded by this.
+    private boolean writeInFlight;
+    private Thread writingThread;
+    private ByteBuffer outbound = ByteBuffer.allocateDirect(0);
+
+    @Override
+    public int read(ByteBuffer dst) {
+      int result = bytesRead;
+      if (result > 0) {
+        bytesRead = 0;
+      }
+      return result;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+      if (closed.get()) {
+        throw new ClosedChannelException();
+      }
+      if (writeInFlight) {
+        return 0;
+      }
+      int length = src.remaining();
+      if (outbound.capacity() < length) {
+        outbound = ByteBuffer.allocateDirect(length);
+      }
+      outbound.clear();
+      outbound.put(src).flip();
+      writeInFlight = true;
+      writingThread = Thread.currentThread();
+      try {
+        channel.write(outbound, outbound, writeHandler);
+      } finally {
+        writingThread = null;
+      }
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !closed.get();
+    }
+
+    @Override
+    public void close() {
+      AsyncChannelConnection.this.close();
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package org.conscrypt;
+
+import java.security.Provider;
+
+/**
+ * Creates engine-based endpoints that do their I/O through NIO.2
+ * {@link java.nio.channels.AsynchronousSocketChannel}s and completion handlers, rather than
+ * blocking sockets or selectors. Servers serve any number of connections.
+ */
+final class AsyncChannelEndpointFactory implements EndpointFactory {
+  private final EndpointOptions options;
+  private final EndpointContexts contexts;
+
+  AsyncChannelEndpointFactory(Provider provider) {
+    this(provider, new EndpointOptions());
+  }
+
+  AsyncChannelEndpointFactory(Provider provider, EndpointOptions options) {
+    this.options = options;
+    contexts = new EndpointContexts(provider, options);
+  }
+
+  @Override
+  public Client newClient(int port, boolean useAlpn) {
+    return new AsyncChannelClient(contexts.clientContext(), options, port, useAlpn);
+  }
+
+  @Override
+  public Server newServer(boolean useAlpn) {
+    return new AsyncChannelServer(contexts.newServerContext(), options, useAlpn);
+  }
+}
@@ -0,0 +1,156 @@
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * An engine-based echo server that serves any number of connections over
+ * {@link AsynchronousSocketChannel}s in a channel group of its own. The group has
+ * {@link EndpointOptions#eventLoopThreads} threads, or one per core if that isn't set.
+ */
+final class AsyncChannelServer implements Server, AsyncChannelConnection.Handler {
+  private static final int ACCEPT_BACKLOG = 4096;
+
+  private final SSLContext context;
+  private final EndpointOptions options;
+  private final boolean useAlpn;
+  private final Set<AsyncChannelConnection> connections = ConcurrentHashMap.newKeySet();
+  private AsynchronousChannelGroup group;
+  private AsynchronousServerSocketChannel serverChannel;
+  private volatile boolean stopped;
+
+  AsyncChannelServer(SSLContext context, EndpointOptions options, boolean useAlpn) {
+    this.context = context;
+    this.options = options;
+    this.useAlpn = useAlpn;
+  }
+
+  /**
+   * Starts accepting connections. Like the event loop server, the returned future completes as
+   * soon as the server is listening.
+   */
+  @Override
+  public CompletableFuture<Void> start() {
+    try {
+      int threads = options.eventLoopThreads() > 0
+          ? options.eventLoopThreads()
+          : Runtime.getRuntime().availableProcessors();
+      group = AsynchronousChannelGroup.withFixedThreadPool(
+          threads, Executors.defaultThreadFactory());
+      serverChannel = AsynchronousServerSocketChannel.open(group)
+          .bind(new InetSocketAddress("localhost", 0), ACCEPT_BACKLOG);
+      accept();
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void stop() {
+    try {
+      stopped = true;
+      if (serverChannel != null) {
+        serverChannel.close();
+      }
+      for (AsyncChannelConnection connection : connections) {
+        connection.close();
+      }
+
+      if (group != null) {
+        group.shutdownNow();
+        group.awaitTermination(5, TimeUnit.SECONDS);
+        group = null;
+      }
+    } catch (IOException | InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public int port() {
+    try {
+      return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the number of connections that are currently open.
+   */
+  int connectionCount() {
+    return connections.size();
+  }
+
+  private void accept() {
+    serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+      @Override
+      public void completed(AsynchronousSocketChannel channel, Void attachment) {
+        // Accept the next connection before handshaking this one.
+        accept();
+
+        EngineWrapper engineWrapper =
+            new EngineWrapper(EngineServer.newServerEngine(context, options, useAlpn), options);
+        AsyncChannelConnection connection = new AsyncChannelConnection(
+            channel, engineWrapper, AsyncChannelServer.this, true);
+        connections.add(connection);
+        if (stopped) {
+          // Missed by stop().
+          connection.close();
+          return;
+        }
+        connection.start();
+      }
+
+      @Override
+      public void failed(Throwable e, Void attachment) {
+        if (!stopped) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void handshakeComplete(AsyncChannelConnection connection) {
+    if (useAlpn) {
+      assertEquals(ALPN_PROTOCOL,
+          Alpn.selectedProtocol(connection.engineWrapper().engine()));
+    }
+  }
+
+  @Override
+  public void messagesReceived(AsyncChannelConnection connection, int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      connection.queueMessage();
+    }
+  }
+
+  @Override
+  public void closed(AsyncChannelConnection connection, Throwable cause) {
+    connections.remove(connection);
+    if (cause != null && !stopped) {
+      cause.printStackTrace();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Server(type=%s, provider=%s, useAlpn=%b)", "AsyncChannel",
+        context.getProvider() instanceof OpenSSLProvider ? "Conscrypt" : "JDK", useAlpn);
+  }
+}
@@ -0,0 +1,157 @@
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A client whose every operation returns a {@link CompletableFuture} instead of blocking. It runs
+ * entirely on the {@link EngineEventLoop} it was registered with, so thousands of them can share
+ * a handful of threads; see {@link AsyncClientGroup}.
+ *
+ * <p>The futures complete on the loop thread. Dependent actions that block must use the
+ * {@code *Async} variants, or they stall every other connection on the loop.
+ */
+final class AsyncClient implements EngineEventLoop.Handler {
+  private final EngineEventLoop loop;
+  private final EngineEventLoop.Connection connection;
+  private final boolean useAlpn;
+  private final CompletableFuture<AsyncClient> connectFuture = new CompletableFuture<>();
+  private final CompletableFuture<SSLSession> handshakeFuture = new CompletableFuture<>();
+  private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+  // Only used by the loop thread.
+  private final ArrayDeque<CompletableFuture<Void>> replyWaiters = new ArrayDeque<>();
+  private int unclaimedReplies;
+  private Throwable closeCause;
+
+  AsyncClient(EngineEventLoop loop, SocketChannel channel, EngineWrapper engineWrapper,
+      boolean useAlpn) {
+    this.loop = loop;
+    this.useAlpn = useAlpn;
+    connection = loop.register(channel, engineWrapper, this);
+  }
+
+  /**
+   * Completes once the TCP connection is established.
+   */
+  CompletableFuture<AsyncClient> connect() {
+    return connectFuture;
+  }
+
+  /**
+   * Completes with the negotiated session once the handshake is done. The handshake starts by
+   * itself as soon as the client is connected.
+   */
+  CompletableFuture<SSLSession> handshake() {
+    return handshakeFuture;
+  }
+
+  /**
+   * Wraps a single message on the loop thread and completes once it has been handed to the
+   * channel or, if the channel is full, queued to be written as soon as it can take more. Fails
+   * if the handshake hasn't completed yet.
+   */
+  CompletableFuture<Void> sendMessage() {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    runOnLoop(future, () -> {
+      connection.sendMessage();
+      future.complete(null);
+    });
+    return future;
+  }
+
+  /**
+   * Completes once the next reply that no earlier call is waiting for has been read. Replies that
+   * arrive before anyone asks for them are counted, so this may be called after sending.
+   */
+  CompletableFuture<Void> readReply() {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    runOnLoop(future, () -> {
+      if (unclaimedReplies > 0) {
+        unclaimedReplies--;
+        future.complete(null);
+      } else {
+        replyWaiters.add(future);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Closes the connection. Any outstanding futures fail with a {@link ClosedChannelException}.
+   */
+  CompletableFuture<Void> close() {
+    loop.execute(connection::close);
+    return closeFuture;
+  }
+
+  @Override
+  public void connected(EngineEventLoop.Connection connection) {
+    connectFuture.complete(this);
+  }
+
+  @Override
+  public void handshakeComplete(EngineEventLoop.Connection connection) {
+    if (useAlpn) {
+      assertEquals(ALPN_PROTOCOL,
+          Alpn.selectedProtocol(connection.engineWrapper().engine()));
+    }
+    handshakeFuture.complete(connection.engineWrapper().engine().getSession());
+  }
+
+  @Override
+  public void messagesReceived(EngineEventLoop.Connection connection, int count) {
+    for (int i = 0; i < count; i++) {
+      CompletableFuture<Void> waiter = replyWaiters.poll();
+      if (waiter != null) {
+        waiter.complete(null);
+      } else {
+        unclaimedReplies++;
+      }
+    }
+  }
+
+  @Override
+  public void closed(EngineEventLoop.Connection connection, Throwable cause) {
+    closeCause = cause != null ? cause : new ClosedChannelException();
+    connectFuture.completeExceptionally(closeCause);
+    handshakeFuture.completeExceptionally(closeCause);
+    for (CompletableFuture<Void> waiter; (waiter = replyWaiters.poll()) != null;) {
+      waiter.completeExceptionally(closeCause);
+    }
+    closeFuture.complete(null);
+  }
+
+  /**
+   * Runs an action on the loop thread once the handshake is done. The action completes the given
+   * future; if the connection is unusable or the action fails, the future fails instead.
+   */
+  private void runOnLoop(CompletableFuture<?> future, IoAction action) {
+    loop.execute(() -> {
+      if (closeCause != null) {
+        future.completeExceptionally(closeCause);
+        return;
+      }
+      if (!handshakeFuture.isDone()) {
+        future.completeExceptionally(new IllegalStateException("The handshake isn't done yet"));
+        return;
+      }
+      try {
+        action.run();
+      } catch (IOException e) {
+        future.completeExceptionally(e);
+        connection.close(e);
+      }
+    });
+  }
+
+  private interface IoAction {
+    void run() throws IOException;
+  }
+}
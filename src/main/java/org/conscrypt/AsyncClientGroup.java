@@ -0,0 +1,80 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.security.Provider;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Creates {@link AsyncClient}s on a fixed set of {@link EngineEventLoop}s, spread round-robin,
+ * so that the number of threads doesn't grow with the number of clients. All clients share one
+ * client context.
+ */
+final class AsyncClientGroup {
+  private final SSLContext context;
+  private final EndpointOptions options;
+  private final EngineEventLoop[] loops;
+  private final AtomicInteger next = new AtomicInteger();
+  private ExecutorService executor;
+
+  AsyncClientGroup(Provider provider, EndpointOptions options, int threads) {
+    this.context = TestUtils.newClientContext(provider, options.keyMaterial());
+    this.options = options;
+    loops = new EngineEventLoop[threads];
+  }
+
+  void start() {
+    executor = Executors.newFixedThreadPool(loops.length);
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EngineEventLoop();
+      executor.submit(loops[i]);
+    }
+  }
+
+  /**
+   * Starts connecting a new client to the server on the given port without blocking. The
+   * returned future completes once the client is connected; its handshake follows on its own.
+   */
+  CompletableFuture<AsyncClient> connect(int port, boolean useAlpn) {
+    try {
+      SocketChannel channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.connect(new InetSocketAddress("localhost", port));
+      EngineWrapper engineWrapper = new EngineWrapper(
+          EngineClient.newClientEngine(context, options, port, useAlpn), options);
+      EngineEventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+      return new AsyncClient(loop, channel, engineWrapper, useAlpn).connect();
+    } catch (IOException e) {
+      CompletableFuture<AsyncClient> future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+      return future;
+    }
+  }
+
+  /**
+   * Stops the loops, which closes every client that is still open.
+   */
+  void stop() {
+    try {
+      for (EngineEventLoop loop : loops) {
+        if (loop != null) {
+          loop.shutdown();
+        }
+      }
+
+      if (executor != null) {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        executor = null;
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
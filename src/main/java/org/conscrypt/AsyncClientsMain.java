@@ -0,0 +1,89 @@
+package org.conscrypt;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many {@link AsyncClient}s against an {@link EngineEventLoopServer}, each of which
+ * connects, handshakes and then echoes a number of messages one at a time, all by chaining
+ * futures rather than parking a thread per client. Reports the handshake and echo rates and how
+ * many threads the process needed.
+ *
+ * <p>Arguments (all optional): number of clients, client event loops, and messages per client.
+ */
+public class AsyncClientsMain {
+  public static void main(String[] args) {
+    try {
+      int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+      int clientLoops = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+      int messages = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        System.err.println(String.format("provider=%s, clients=%d, clientLoops=%d, messages=%d",
+            provider, clients, clientLoops, messages));
+        measure(provider, clients, clientLoops, messages);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void measure(
+      BenchmarkProvider provider, int clients, int clientLoops, int messages) {
+    EndpointOptions options =
+        new EndpointOptions().eventLoopThreads(Runtime.getRuntime().availableProcessors());
+    Server server = new EngineEndpointFactory(provider.newProvider(), options).newServer(false);
+    TestUtils.wait(server.start());
+    AsyncClientGroup group = new AsyncClientGroup(provider.newProvider(), options, clientLoops);
+    group.start();
+    try {
+      long start = System.nanoTime();
+      @SuppressWarnings("unchecked")
+      CompletableFuture<AsyncClient>[] handshakes = new CompletableFuture[clients];
+      for (int i = 0; i < clients; i++) {
+        handshakes[i] = group.connect(server.port(), false)
+            .thenCompose(client -> client.handshake().thenApply(session -> client));
+      }
+      CompletableFuture.allOf(handshakes).join();
+      long handshakeNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      CompletableFuture<?>[] echoes = new CompletableFuture<?>[clients];
+      for (int i = 0; i < clients; i++) {
+        echoes[i] = echo(handshakes[i].join(), messages);
+      }
+      CompletableFuture.allOf(echoes).join();
+      long echoNanos = System.nanoTime() - start;
+      int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+      for (CompletableFuture<AsyncClient> handshake : handshakes) {
+        handshake.join().close().join();
+      }
+
+      System.err.println(String.format("handshakes/s=%.0f, echoes/s=%.0f, threads=%d",
+          clients / toSeconds(handshakeNanos), (double) clients * messages / toSeconds(echoNanos),
+          threads));
+    } finally {
+      group.stop();
+      server.stop();
+    }
+  }
+
+  /**
+   * Echoes the given number of messages, sending each as soon as the previous reply arrives.
+   */
+  private static CompletableFuture<Void> echo(AsyncClient client, int remaining) {
+    if (remaining == 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return client.sendMessage()
+        .thenCompose(sent -> client.readReply())
+        .thenCompose(reply -> echo(client, remaining - 1));
+  }
+
+  private static double toSeconds(long nanos) {
+    return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,24 @@
+package org.conscrypt;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * The TLS providers that benchmarks can be parameterized with.
+ */
+public enum BenchmarkProvider {
+  CONSCRYPT {
+    @Override
+    Provider newProvider() {
+      return new OpenSSLProvider();
+    }
+  },
+  JDK {
+    @Override
+    Provider newProvider() {
+      return Security.getProvider("SunJSSE");
+    }
+  };
+
+  abstract Provider newProvider();
+}
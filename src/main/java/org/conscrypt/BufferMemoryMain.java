@@ -0,0 +1,134 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Compares the direct memory held by idle connections when every {@link EngineWrapper} allocates
+ * its own buffers versus borrowing them from a shared {@link BufferPool}. Opens the given number
+ * of connections to an {@link EngineEventLoopServer}, exchanges one message on each and then lets
+ * them sit idle. Both the client and the server side of each connection live in this process, so
+ * the figures are per endpoint, i.e. half of the total per connection.
+ *
+ * <p>Only memory allocated through {@link java.nio.ByteBuffer#allocateDirect} is counted. Native
+ * memory allocated by the provider itself, such as Conscrypt's {@code SSL} objects, is not; run
+ * with {@code -XX:NativeMemoryTracking=summary} to see the rest.
+ *
+ * <p>Arguments (all optional): number of connections and number of server loops.
+ */
+public class BufferMemoryMain {
+  public static void main(String[] args) {
+    try {
+      int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      int serverLoops = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (boolean pooled : new boolean[] {false, true}) {
+          BufferPool bufferPool = pooled ? new BufferPool() : null;
+          EndpointOptions options =
+              new EndpointOptions().eventLoopThreads(serverLoops).bufferPool(bufferPool);
+          long bytes = measure(provider, options, connections);
+          System.err.println(String.format(
+              "provider=%s, buffers=%s: %d connections, %.1fKB direct memory per endpoint",
+              provider, pooled ? "pooled" : "dedicated", connections,
+              bytes / (2.0 * connections) / 1024));
+          if (bufferPool != null) {
+            System.err.println("  " + bufferPool);
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return the growth in direct memory once all connections have gone idle.
+   */
+  private static long measure(BenchmarkProvider provider, EndpointOptions options,
+      int connections) throws IOException, InterruptedException {
+    EngineEventLoopServer server = (EngineEventLoopServer) new EngineEndpointFactory(
+        provider.newProvider(), options).newServer(false);
+    server.start();
+
+    SSLContext clientContext = TestUtils.newClientContext(provider.newProvider());
+    int clientLoopCount = Math.max(1, options.eventLoopThreads() / 2);
+    EngineEventLoop[] clientLoops = new EngineEventLoop[clientLoopCount];
+    ExecutorService executor = Executors.newFixedThreadPool(clientLoopCount);
+    for (int i = 0; i < clientLoopCount; i++) {
+      clientLoops[i] = new EngineEventLoop();
+      executor.submit(clientLoops[i]);
+    }
+
+    try {
+      long before = directMemoryUsed();
+      SingleMessageHandler handler = new SingleMessageHandler(connections);
+      for (int i = 0; i < connections; i++) {
+        SocketChannel channel =
+            SocketChannel.open(new InetSocketAddress("localhost", server.port()));
+        EngineWrapper engineWrapper = new EngineWrapper(
+            EngineClient.newClientEngine(clientContext, options, server.port(), false), options);
+        clientLoops[i % clientLoopCount].register(channel, engineWrapper, handler);
+      }
+      if (!handler.replies.await(5, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("Timed out waiting for replies");
+      }
+      return directMemoryUsed() - before;
+    } finally {
+      for (EngineEventLoop loop : clientLoops) {
+        loop.shutdown();
+      }
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+      server.stop();
+    }
+  }
+
+  /**
+   * Returns the direct memory in use, after giving the garbage collector a chance to free the
+   * buffers of connections closed by a previous run.
+   */
+  private static long directMemoryUsed() throws InterruptedException {
+    System.gc();
+    // Direct buffers are freed by a cleaner shortly after they have been collected.
+    TimeUnit.MILLISECONDS.sleep(500);
+    for (BufferPoolMXBean bean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (bean.getName().equals("direct")) {
+        return bean.getMemoryUsed();
+      }
+    }
+    throw new IllegalStateException("No direct buffer pool");
+  }
+
+  /**
+   * Sends one message per connection and counts down once its reply has arrived.
+   */
+  private static final class SingleMessageHandler implements EngineEventLoop.Handler {
+    private final CountDownLatch replies;
+
+    SingleMessageHandler(int connections) {
+      replies = new CountDownLatch(connections);
+    }
+
+    @Override
+    public void handshakeComplete(EngineEventLoop.Connection connection) throws IOException {
+      connection.sendMessage();
+    }
+
+    @Override
+    public void messagesReceived(EngineEventLoop.Connection connection, int count) {
+      for (int i = 0; i < count; i++) {
+        replies.countDown();
+      }
+    }
+  }
+}
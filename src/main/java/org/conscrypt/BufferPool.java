@@ -0,0 +1,95 @@
+package org.conscrypt;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of heap and direct buffers that any number of connections, on any number of threads,
+ * borrow from while they wrap or unwrap. Requested sizes are rounded up to a multiple of
+ * {@link #SIZE_CLASS_GRANULARITY}, so engines whose packet and application buffer sizes differ
+ * slightly still share buffers. The pool never shrinks: it ends up holding as many buffers of each
+ * size class as were ever borrowed at the same time.
+ */
+final class BufferPool {
+  static final int SIZE_CLASS_GRANULARITY = 4096;
+
+  private final Map<Integer, Deque<ByteBuffer>> freeDirectBuffers = new ConcurrentHashMap<>();
+  private final Map<Integer, Deque<ByteBuffer>> freeHeapBuffers = new ConcurrentHashMap<>();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+  private final AtomicLong allocatedBuffers = new AtomicLong();
+  private final AtomicLong borrowedBytes = new AtomicLong();
+  private final AtomicLong acquisitions = new AtomicLong();
+
+  /**
+   * Borrows a cleared heap or direct buffer with a capacity of at least {@code size} bytes.
+   */
+  ByteBuffer acquire(int size, boolean direct) {
+    int sizeClass = sizeClass(size);
+    acquisitions.incrementAndGet();
+    borrowedBytes.addAndGet(sizeClass);
+    // Most recently released first, as it's the most likely to still be in a CPU cache.
+    ByteBuffer buffer = freeBuffers(sizeClass, direct).pollFirst();
+    if (buffer == null) {
+      allocatedBuffers.incrementAndGet();
+      allocatedBytes.addAndGet(sizeClass);
+      return BufferStrategy.allocate(sizeClass, direct);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire}. The caller must not touch it afterwards.
+   */
+  void release(ByteBuffer buffer) {
+    borrowedBytes.addAndGet(-buffer.capacity());
+    freeBuffers(buffer.capacity(), buffer.isDirect()).offerFirst(buffer);
+  }
+
+  /**
+   * The total capacity of all buffers the pool has allocated, whether borrowed or not.
+   */
+  long allocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * The total capacity of all buffers that are currently borrowed.
+   */
+  long borrowedBytes() {
+    return borrowedBytes.get();
+  }
+
+  /**
+   * The number of times a buffer has been borrowed.
+   */
+  long acquisitions() {
+    return acquisitions.get();
+  }
+
+  @Override
+  public String toString() {
+    long acquired = acquisitions.get();
+    long allocated = allocatedBuffers.get();
+    return String.format("allocated=%dKB in %d buffers, borrowed=%dKB, hitRate=%.2f%%",
+        allocatedBytes() / 1024, allocated, borrowedBytes() / 1024,
+        acquired == 0 ? 0 : 100.0 * (acquired - allocated) / acquired);
+  }
+
+  private Deque<ByteBuffer> freeBuffers(int sizeClass, boolean direct) {
+    Map<Integer, Deque<ByteBuffer>> freeBuffers = direct ? freeDirectBuffers : freeHeapBuffers;
+    Deque<ByteBuffer> buffers = freeBuffers.get(sizeClass);
+    if (buffers == null) {
+      buffers = freeBuffers.computeIfAbsent(sizeClass, key -> new ConcurrentLinkedDeque<>());
+    }
+    return buffers;
+  }
+
+  private static int sizeClass(int size) {
+    return (size + SIZE_CLASS_GRANULARITY - 1) / SIZE_CLASS_GRANULARITY * SIZE_CLASS_GRANULARITY;
+  }
+}
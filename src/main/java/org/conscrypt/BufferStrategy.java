@@ -0,0 +1,52 @@
+package org.conscrypt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where {@link EngineWrapper} keeps the buffers it hands to the engine: the packet buffers holding
+ * TLS records on their way to and from the channel, and the application buffers holding the
+ * plaintext messages, both the inbound application buffer and the message that is sent. Conscrypt's
+ * engine can only operate on native memory, so it copies heap buffers into direct ones on every
+ * wrap and unwrap; the JDK's engine works on either.
+ */
+public enum BufferStrategy {
+  HEAP(false, false, false),
+  DIRECT(true, true, true),
+  /**
+   * Like {@link #DIRECT}, except that the message that is sent stays on the heap. This is the
+   * layout engine endpoints have always used, and the default.
+   */
+  DIRECT_HEAP_MESSAGES(true, true, false),
+  /**
+   * Direct packet buffers, as the channel would otherwise copy heap ones, and heap application
+   * buffers, as most applications have their data on the heap.
+   */
+  MIXED(true, false, false);
+
+  private final boolean directPackets;
+  private final boolean directApplicationBuffer;
+  private final boolean directMessages;
+
+  BufferStrategy(boolean directPackets, boolean directApplicationBuffer,
+      boolean directMessages) {
+    this.directPackets = directPackets;
+    this.directApplicationBuffer = directApplicationBuffer;
+    this.directMessages = directMessages;
+  }
+
+  boolean directPackets() {
+    return directPackets;
+  }
+
+  boolean directApplicationBuffer() {
+    return directApplicationBuffer;
+  }
+
+  boolean directMessages() {
+    return directMessages;
+  }
+
+  static ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+}
@@ -0,0 +1,72 @@
+package org.conscrypt;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams data over a single engine-based connection with each {@link BufferStrategy} and reports
+ * the throughput and, for Conscrypt, how many times per message the engines copied a heap buffer
+ * into native memory. The copies are counted through a {@link PooledBufferAllocator}, which every
+ * Conscrypt engine gets here; each message is wrapped and unwrapped once in each direction.
+ *
+ * <p>Arguments (all optional): megabytes to stream, chunk size in bytes, and {@code ENGINE} or
+ * {@code MEMORY}.
+ */
+public class BufferStrategyMain {
+  private static final long WARMUP_MEGABYTES = 128;
+
+  public static void main(String[] args) {
+    try {
+      long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+      int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+      EndpointType endpointType = args.length > 2 ? EndpointType.valueOf(args[2])
+                                                  : EndpointType.ENGINE;
+      if (endpointType == EndpointType.SOCKET) {
+        throw new IllegalArgumentException("Socket endpoints don't use buffer strategies");
+      }
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        System.err.println(String.format("provider=%s, endpoint=%s, chunkSize=%d", provider,
+            endpointType, chunkSize));
+        System.err.println("strategy\tMB/s\tcopies/msg\tcopyPool");
+        for (BufferStrategy strategy : BufferStrategy.values()) {
+          BufferPool copyPool = new BufferPool();
+          EndpointOptions options = new EndpointOptions()
+              .messageLength(chunkSize)
+              .bufferStrategy(strategy)
+              .conscryptBufferPool(copyPool);
+          EndpointFactory factory = endpointType.newFactory(provider.newProvider(), options);
+          Server server = factory.newServer(false);
+          Future<?> serverStartFuture = server.start();
+          Client client = factory.newClient(server.port(), false);
+          try {
+            TestUtils.wait(client.start());
+            TestUtils.wait(serverStartFuture);
+
+            StreamingMain.stream(client, WARMUP_MEGABYTES * 1024 * 1024 / chunkSize);
+            long chunks = megabytes * 1024 * 1024 / chunkSize;
+            long copiesBefore = copyPool.acquisitions();
+            long start = System.nanoTime();
+            StreamingMain.stream(client, chunks);
+            long nanos = System.nanoTime() - start;
+            long copies = copyPool.acquisitions() - copiesBefore;
+
+            double megabytesPerSecond =
+                chunks * chunkSize / (1024.0 * 1024) / nanos * TimeUnit.SECONDS.toNanos(1);
+            String copyStats = provider == BenchmarkProvider.CONSCRYPT
+                ? String.format("%.2f\t%s", (double) copies / chunks, copyPool)
+                : "-\t-";
+            System.err.println(
+                String.format("%s\t%.1f\t%s", strategy, megabytesPerSecond, copyStats));
+          } finally {
+            client.stop();
+            server.stop();
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package org.conscrypt;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures echoing payloads that span many TLS records over an established connection. Multiply
+ * the throughput score by {@code messageLength} to get bytes per second in each direction. Socket
+ * endpoints ignore {@code bufferStrategy}.
+ */
+public class BulkTransferBenchmark extends EndpointBenchmark {
+  @Param({"65536", "1048576"})
+  public int messageLength;
+
+  @Param({"DIRECT_HEAP_MESSAGES"})
+  public BufferStrategy bufferStrategy;
+
+  @Override
+  EndpointOptions newOptions() {
+    return super.newOptions().messageLength(messageLength).bufferStrategy(bufferStrategy);
+  }
+
+  @Setup
+  public void setUp() {
+    newEndpoints();
+    handshake();
+  }
+
+  @TearDown
+  public void tearDown() {
+    stopEndpoints();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void transferThroughput() {
+    transfer();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void transferLatency() {
+    transfer();
+  }
+
+  private void transfer() {
+    client.sendMessage();
+    TestUtils.wait(client.readReply());
+  }
+}
@@ -0,0 +1,176 @@
+package org.conscrypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues X.509 v3 certificates with nothing but the JCA, by encoding the few DER structures a
+ * certificate needs by hand. Certificates carry a common name, a basic constraints extension
+ * and, for leaves, a DNS subject alternative name of {@code localhost}; that is all the trust
+ * managers the endpoints use look at.
+ */
+final class CertificateGenerator {
+  private static final int BOOLEAN = 0x01;
+  private static final int INTEGER = 0x02;
+  private static final int BIT_STRING = 0x03;
+  private static final int OCTET_STRING = 0x04;
+  private static final int NULL = 0x05;
+  private static final int OBJECT_IDENTIFIER = 0x06;
+  private static final int UTF8_STRING = 0x0c;
+  private static final int UTC_TIME = 0x17;
+  private static final int SEQUENCE = 0x30;
+  private static final int SET = 0x31;
+
+  private static final String COMMON_NAME = "2.5.4.3";
+  private static final String SUBJECT_ALT_NAME = "2.5.29.17";
+  private static final String BASIC_CONSTRAINTS = "2.5.29.19";
+
+  /**
+   * The algorithm identifier OIDs of the signature algorithms {@link KeyType} uses. RSA ones have
+   * explicit NULL parameters, the others none.
+   */
+  private static final Map<String, String> SIGNATURE_OIDS = new HashMap<>();
+
+  static {
+    SIGNATURE_OIDS.put("SHA256withRSA", "1.2.840.113549.1.1.11");
+    SIGNATURE_OIDS.put("SHA256withECDSA", "1.2.840.10045.4.3.2");
+    SIGNATURE_OIDS.put("SHA384withECDSA", "1.2.840.10045.4.3.3");
+    SIGNATURE_OIDS.put("Ed25519", "1.3.101.112");
+  }
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Issues a certificate for {@code subjectKey}, signed by {@code issuerKey}, valid from a day ago
+   * until a year from now.
+   *
+   * @param ca whether the certificate may issue other certificates
+   */
+  static X509Certificate issue(String subject, PublicKey subjectKey, String issuer,
+      PrivateKey issuerKey, KeyType issuerKeyType, boolean ca) throws GeneralSecurityException {
+    String signatureAlgorithm = issuerKeyType.signatureAlgorithm();
+    byte[] algorithmIdentifier = algorithmIdentifier(signatureAlgorithm);
+    long now = System.currentTimeMillis();
+
+    byte[] extensions = ca
+        ? extension(BASIC_CONSTRAINTS, true, der(SEQUENCE, der(BOOLEAN, new byte[] {-1})))
+        : concat(extension(BASIC_CONSTRAINTS, true, der(SEQUENCE)),
+            extension(SUBJECT_ALT_NAME, false,
+                // dNSName
+                der(SEQUENCE, der(0x82, "localhost".getBytes(StandardCharsets.US_ASCII)))));
+    byte[] tbsCertificate = der(SEQUENCE,
+        der(0xa0, der(INTEGER, new byte[] {2})), // Version 3
+        der(INTEGER, new BigInteger(63, RANDOM).add(BigInteger.ONE).toByteArray()),
+        algorithmIdentifier,
+        name(issuer),
+        der(SEQUENCE, utcTime(now - TimeUnit.DAYS.toMillis(1)),
+            utcTime(now + TimeUnit.DAYS.toMillis(365))),
+        name(subject),
+        subjectKey.getEncoded(),
+        der(0xa3, der(SEQUENCE, extensions))); // Extensions
+
+    Signature signer = Signature.getInstance(signatureAlgorithm);
+    signer.initSign(issuerKey);
+    signer.update(tbsCertificate);
+    byte[] certificate =
+        der(SEQUENCE, tbsCertificate, algorithmIdentifier, bitString(signer.sign()));
+    return (X509Certificate) CertificateFactory.getInstance("X.509")
+        .generateCertificate(new ByteArrayInputStream(certificate));
+  }
+
+  private static byte[] algorithmIdentifier(String signatureAlgorithm) {
+    String oid = SIGNATURE_OIDS.get(signatureAlgorithm);
+    if (oid == null) {
+      throw new IllegalArgumentException("Unsupported signature algorithm: " + signatureAlgorithm);
+    }
+    return signatureAlgorithm.endsWith("RSA") ? der(SEQUENCE, oid(oid), der(NULL))
+                                              : der(SEQUENCE, oid(oid));
+  }
+
+  private static byte[] name(String commonName) {
+    return der(SEQUENCE, der(SET, der(SEQUENCE, oid(COMMON_NAME),
+        der(UTF8_STRING, commonName.getBytes(StandardCharsets.UTF_8)))));
+  }
+
+  private static byte[] extension(String oid, boolean critical, byte[] value) {
+    byte[] criticality = critical ? der(BOOLEAN, new byte[] {-1}) : new byte[0];
+    return der(SEQUENCE, oid(oid), criticality, der(OCTET_STRING, value));
+  }
+
+  private static byte[] utcTime(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return der(UTC_TIME, format.format(new Date(millis)).getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static byte[] bitString(byte[] bytes) {
+    // No unused bits in the last byte.
+    return der(BIT_STRING, new byte[] {0}, bytes);
+  }
+
+  private static byte[] oid(String oid) {
+    String[] parts = oid.split("\\.");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+    for (int i = 2; i < parts.length; i++) {
+      long value = Long.parseLong(parts[i]);
+      // Base 128, most significant group first, with the high bit set on all but the last.
+      int shift = 0;
+      while ((value >> (shift + 7)) != 0) {
+        shift += 7;
+      }
+      for (; shift > 0; shift -= 7) {
+        out.write((int) ((value >> shift) & 0x7f) | 0x80);
+      }
+      out.write((int) (value & 0x7f));
+    }
+    return der(OBJECT_IDENTIFIER, out.toByteArray());
+  }
+
+  /**
+   * Encodes a tag, length and the concatenated contents.
+   */
+  private static byte[] der(int tag, byte[]... contents) {
+    byte[] content = concat(contents);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+    out.write(tag);
+    int length = content.length;
+    if (length < 0x80) {
+      out.write(length);
+    } else {
+      int lengthBytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+      out.write(0x80 | lengthBytes);
+      for (int i = lengthBytes - 1; i >= 0; i--) {
+        out.write(length >>> (i * 8));
+      }
+    }
+    out.write(content, 0, content.length);
+    return out.toByteArray();
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+
+  private CertificateGenerator() {
+  }
+}
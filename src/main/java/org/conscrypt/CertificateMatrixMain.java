@@ -0,0 +1,58 @@
+package org.conscrypt;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the full handshake rate with freshly generated certificates of every {@link KeyType}
+ * the JDK supports, at each of the given chain lengths, against a long-lived server as in
+ * {@link HandshakeRateMain}. The server signs every handshake with its key and the client verifies
+ * every certificate in the chain, so this shows what choosing a key type and CA hierarchy costs.
+ * Combinations a provider can't handshake with are reported as such.
+ *
+ * <p>Arguments (all optional): {@code ENGINE} or {@code SOCKET}, handshakes measured per
+ * combination, and a comma-separated list of chain lengths.
+ */
+public class CertificateMatrixMain {
+  public static void main(String[] args) {
+    try {
+      EndpointType endpointType = args.length > 0 ? EndpointType.valueOf(args[0])
+                                                  : EndpointType.ENGINE;
+      if (endpointType == EndpointType.MEMORY) {
+        throw new IllegalArgumentException("Memory servers only serve a single connection");
+      }
+      int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+      String[] chainLengths = (args.length > 2 ? args[2] : "1,3").split(",");
+
+      for (KeyType keyType : KeyType.values()) {
+        if (!keyType.isSupported()) {
+          System.err.println("keyType=" + keyType + ": not supported by this JDK");
+          continue;
+        }
+        for (String chainLength : chainLengths) {
+          KeyMaterial keyMaterial = KeyMaterial.generate(keyType, Integer.parseInt(chainLength));
+          for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+            EndpointOptions options = new EndpointOptions()
+                .eventLoopThreads(1)
+                .threadPerConnection(true)
+                .keyMaterial(keyMaterial);
+            String configuration = String.format("keyType=%s, chainLength=%s, provider=%s",
+                keyType, chainLength, provider);
+            Histogram histogram;
+            try {
+              histogram = HandshakeRateMain.measure(
+                  endpointType.newFactory(provider.newProvider(), options), iterations);
+            } catch (RuntimeException e) {
+              System.err.println(configuration + ": handshake failed: " + TestUtils.rootCause(e));
+              continue;
+            }
+            System.err.println(String.format("%s: %.1f/s, %s", configuration,
+                TimeUnit.SECONDS.toNanos(1) / histogram.meanNanos(), histogram));
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
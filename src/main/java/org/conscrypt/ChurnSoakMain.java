@@ -0,0 +1,293 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+
+/**
+ * Soak test for connection churn. For every provider and endpoint type, worker threads open a
+ * connection, handshake, echo one message and close it, over and over. The process's resident
+ * set size, committed native memory, open file descriptors and the number of objects waiting for
+ * finalization are sampled at even intervals. Once the warm-up is over, a resource that grows at
+ * every sample and ends up well above where it started is reported as a leak, and the test fails
+ * after all runs have finished.
+ *
+ * <p>All clients of a run share one context and both session caches are bounded, so that
+ * neither context setup nor a filling session cache shows up as growth. ENGINE, SOCKET and
+ * ASYNC_CHANNEL endpoints connect to a single multi-connection server, while MEMORY endpoints get
+ * a server per connection, and with it a server context that is discarded with the server.
+ *
+ * <p>Native memory is only sampled when the JVM runs with
+ * {@code -XX:NativeMemoryTracking=summary}, and resident set size only on Linux.
+ *
+ * <p>Arguments (all optional): connections per run, number of samples, of which the first
+ * quarter is warm-up, and worker threads.
+ */
+public class ChurnSoakMain {
+  private static final int SESSION_CACHE_SIZE = 1000;
+  // How far above the first sample after warm-up the last one must be to count as a leak, either
+  // relative to the first or, for counts, in absolute terms.
+  private static final double MEMORY_TOLERANCE = 0.10;
+  private static final long DESCRIPTOR_TOLERANCE = 64;
+  private static final long FINALIZATION_TOLERANCE = 1000;
+  private static final Pattern NMT_COMMITTED =
+      Pattern.compile("Total: reserved=\\d+KB, committed=(\\d+)KB");
+
+  public static void main(String[] args) {
+    try {
+      long connections = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+      int samples = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+      int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+      List<String> leaks = new ArrayList<>();
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (EndpointType endpointType : EndpointType.values()) {
+          String run = String.format("provider=%s, endpoint=%s", provider, endpointType);
+          System.err.println(run + ", connections=" + connections);
+          System.err.println("connections\tconns/s\trssKB\tnmtKB\tfds\tpendingFinalization");
+          List<Sample> history = soak(provider, endpointType, connections, samples, threads);
+          for (String leak : findLeaks(history.subList(samples / 4, history.size()))) {
+            System.err.println("  LEAK: " + leak);
+            leaks.add(run + ": " + leak);
+          }
+        }
+      }
+      if (!leaks.isEmpty()) {
+        throw new IllegalStateException("Resources grew throughout the soak:\n  "
+            + String.join("\n  ", leaks));
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static List<Sample> soak(BenchmarkProvider provider, EndpointType endpointType,
+      long connections, int samples, int threads) throws Exception {
+    EndpointOptions options = new EndpointOptions()
+        .shareClientContext(true)
+        .clientSessionCacheSize(SESSION_CACHE_SIZE)
+        .serverSessionCacheSize(SESSION_CACHE_SIZE);
+    if (endpointType != EndpointType.MEMORY) {
+      options.eventLoopThreads(1).threadPerConnection(true);
+    }
+    EndpointFactory factory = endpointType.newFactory(provider.newProvider(), options);
+
+    Server sharedServer = null;
+    if (endpointType != EndpointType.MEMORY) {
+      sharedServer = factory.newServer(false);
+      TestUtils.wait(sharedServer.start());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    AtomicLong started = new AtomicLong();
+    AtomicLong completed = new AtomicLong();
+    try {
+      List<Future<?>> workers = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        Server server = sharedServer;
+        workers.add(executor.submit(() -> {
+          while (started.getAndIncrement() < connections) {
+            churn(factory, server);
+            completed.incrementAndGet();
+          }
+          return null;
+        }));
+      }
+
+      List<Sample> history = new ArrayList<>();
+      long previousCount = 0;
+      long previousNanos = System.nanoTime();
+      for (int i = 1; i <= samples; i++) {
+        long target = connections * i / samples;
+        while (completed.get() < target) {
+          for (Future<?> worker : workers) {
+            if (worker.isDone()) {
+              // Rethrows whatever stopped the worker early.
+              worker.get();
+            }
+          }
+          Thread.sleep(10);
+        }
+        long count = completed.get();
+        long nanos = System.nanoTime();
+        Sample sample = Sample.take(count);
+        history.add(sample);
+        System.err.println(String.format("%d\t%.0f\t%s", count,
+            (count - previousCount) / ((nanos - previousNanos)
+                / (double) TimeUnit.SECONDS.toNanos(1)),
+            sample));
+        previousCount = count;
+        previousNanos = nanos;
+      }
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+      return history;
+    } finally {
+      started.set(connections);
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+      if (sharedServer != null) {
+        sharedServer.stop();
+      }
+    }
+  }
+
+  /**
+   * Opens a connection, handshakes, echoes a single message and closes it again.
+   */
+  private static void churn(EndpointFactory factory, Server sharedServer) {
+    Server server = sharedServer;
+    Future<Void> serverStarted = null;
+    if (server == null) {
+      server = factory.newServer(false);
+      serverStarted = server.start();
+    }
+    try {
+      Client client = factory.newClient(server.port(), false);
+      try {
+        TestUtils.wait(client.start());
+        if (serverStarted != null) {
+          TestUtils.wait(serverStarted);
+        }
+        client.sendMessage();
+        TestUtils.wait(client.readReply());
+      } finally {
+        client.stop();
+      }
+    } finally {
+      if (sharedServer == null) {
+        server.stop();
+      }
+    }
+  }
+
+  /**
+   * Describes every resource that grew at each sample and ended up beyond its tolerance.
+   */
+  private static List<String> findLeaks(List<Sample> samples) {
+    List<String> leaks = new ArrayList<>();
+    checkGrowth(leaks, "rssKB", samples, s -> s.rssKilobytes,
+        first -> (long) (first * MEMORY_TOLERANCE));
+    checkGrowth(leaks, "nmtKB", samples, s -> s.nativeKilobytes,
+        first -> (long) (first * MEMORY_TOLERANCE));
+    checkGrowth(leaks, "fds", samples, s -> s.fileDescriptors, first -> DESCRIPTOR_TOLERANCE);
+    checkGrowth(leaks, "pendingFinalization", samples, s -> s.pendingFinalization,
+        first -> FINALIZATION_TOLERANCE);
+    return leaks;
+  }
+
+  private static void checkGrowth(List<String> leaks, String name, List<Sample> samples,
+      ToLongFunction<Sample> metric, LongUnaryOperator tolerance) {
+    long first = metric.applyAsLong(samples.get(0));
+    if (first < 0) {
+      // Not available on this platform or JVM.
+      return;
+    }
+    long previous = first;
+    for (Sample sample : samples) {
+      long value = metric.applyAsLong(sample);
+      if (value < previous) {
+        return;
+      }
+      previous = value;
+    }
+    if (previous - first > tolerance.applyAsLong(first)) {
+      leaks.add(String.format("%s grew from %d to %d over %d connections", name, first, previous,
+          samples.get(samples.size() - 1).connections - samples.get(0).connections));
+    }
+  }
+
+  private static final class Sample {
+    private final long connections;
+    private final long rssKilobytes;
+    private final long nativeKilobytes;
+    private final long fileDescriptors;
+    private final long pendingFinalization;
+
+    private Sample(long connections, long rssKilobytes, long nativeKilobytes,
+        long fileDescriptors, long pendingFinalization) {
+      this.connections = connections;
+      this.rssKilobytes = rssKilobytes;
+      this.nativeKilobytes = nativeKilobytes;
+      this.fileDescriptors = fileDescriptors;
+      this.pendingFinalization = pendingFinalization;
+    }
+
+    /**
+     * Samples every resource, after a collection so that the heap's own growth and shrinking
+     * doesn't hide or fake a trend. Finalization is left to the finalizer thread, since a backlog
+     * there is one of the things being looked for. Resources that can't be sampled are -1.
+     */
+    static Sample take(long connections) {
+      System.gc();
+      return new Sample(connections, residentSetKilobytes(), nativeMemoryKilobytes(),
+          openFileDescriptors(),
+          ManagementFactory.getMemoryMXBean().getObjectPendingFinalizationCount());
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d\t%d\t%d\t%d", rssKilobytes, nativeKilobytes, fileDescriptors,
+          pendingFinalization);
+    }
+
+    private static long residentSetKilobytes() {
+      Path status = Paths.get("/proc/self/status");
+      if (!Files.isReadable(status)) {
+        return -1;
+      }
+      try {
+        for (String line : Files.readAllLines(status, StandardCharsets.US_ASCII)) {
+          if (line.startsWith("VmRSS:")) {
+            return Long.parseLong(line.replaceAll("[^0-9]", ""));
+          }
+        }
+        return -1;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Returns the committed total from {@code VM.native_memory summary}, the same report that
+     * {@code jcmd} prints.
+     */
+    private static long nativeMemoryKilobytes() {
+      try {
+        String report = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+            new ObjectName("com.sun.management:type=DiagnosticCommand"), "vmNativeMemory",
+            new Object[] {new String[] {"summary"}}, new String[] {String[].class.getName()});
+        Matcher matcher = NMT_COMMITTED.matcher(report);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+      } catch (Exception e) {
+        // Not a HotSpot JVM.
+        return -1;
+      }
+    }
+
+    private static long openFileDescriptors() {
+      OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+      if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+        return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+      }
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package org.conscrypt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Pins every combination of protocol version and cipher suite a provider enables by default and
+ * measures the full handshake rate and the bulk throughput of each. Handshakes are timed against a
+ * long-lived multi-connection server as in {@link HandshakeRateMain}, and the throughput is
+ * streamed over a single connection as in {@link StreamingMain}.
+ *
+ * <p>A provider may ignore a pinned suite, as BoringSSL does for TLS 1.3, so the negotiated
+ * protocol and suite are checked on every connection and combinations that don't stick are
+ * reported as such rather than measured.
+ *
+ * <p>Arguments (all optional): {@code ENGINE} or {@code SOCKET}, handshakes measured per
+ * combination, and megabytes to stream per combination.
+ */
+public class CipherSuiteSweepMain {
+  private static final String[] PROTOCOLS = {"TLSv1.2", "TLSv1.3"};
+  private static final int WARMUP_HANDSHAKES = 20;
+  private static final int CHUNK_SIZE = 16384;
+
+  public static void main(String[] args) {
+    try {
+      EndpointType endpointType = args.length > 0 ? EndpointType.valueOf(args[0])
+                                                  : EndpointType.ENGINE;
+      if (endpointType == EndpointType.MEMORY) {
+        throw new IllegalArgumentException("Memory servers only serve a single connection");
+      }
+      int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+      long megabytes = args.length > 2 ? Long.parseLong(args[2]) : 256;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        System.err.println("provider=" + provider + ", endpoint=" + endpointType);
+        System.err.println("protocol\tcipherSuite\thandshakes/s\tp50 us\tp99 us\tMB/s");
+        SSLParameters defaults =
+            TestUtils.newClientContext(provider.newProvider()).getDefaultSSLParameters();
+        List<String> supportedProtocols = Arrays.asList(defaults.getProtocols());
+        for (String protocol : PROTOCOLS) {
+          if (!supportedProtocols.contains(protocol)) {
+            continue;
+          }
+          for (String cipherSuite : cipherSuites(defaults, protocol)) {
+            EndpointOptions options = new EndpointOptions()
+                .eventLoopThreads(1)
+                .threadPerConnection(true)
+                .messageLength(CHUNK_SIZE)
+                .protocols(protocol)
+                .cipherSuites(cipherSuite);
+            measure(endpointType.newFactory(provider.newProvider(), options), protocol,
+                cipherSuite, handshakes, megabytes);
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Returns the default cipher suites that can be negotiated with the given protocol version and
+   * the RSA server key from {@link KeyMaterial}.
+   */
+  private static List<String> cipherSuites(SSLParameters defaults, String protocol) {
+    List<String> cipherSuites = new ArrayList<>();
+    for (String cipherSuite : defaults.getCipherSuites()) {
+      // TLS 1.3 suites name only the AEAD and hash; earlier ones also name the key exchange.
+      boolean tls13 = !cipherSuite.contains("_WITH_");
+      // Static ECDH suites need an EC certificate even when they name RSA.
+      if (cipherSuite.endsWith("_SCSV") || cipherSuite.contains("_ECDH_")) {
+        continue;
+      }
+      if (protocol.equals("TLSv1.3") ? tls13 : !tls13 && cipherSuite.contains("_RSA_")) {
+        cipherSuites.add(cipherSuite);
+      }
+    }
+    return cipherSuites;
+  }
+
+  private static void measure(EndpointFactory factory, String protocol, String cipherSuite,
+      int handshakes, long megabytes) {
+    Server server = factory.newServer(false);
+    TestUtils.wait(server.start());
+    try {
+      Histogram histogram = new Histogram();
+      for (int i = 0; i < WARMUP_HANDSHAKES + handshakes; i++) {
+        Client client = factory.newClient(server.port(), false);
+        try {
+          long start = System.nanoTime();
+          try {
+            TestUtils.wait(client.start());
+          } catch (RuntimeException e) {
+            // Enabled by default doesn't mean usable with this key and these peers.
+            System.err.println(protocol + "\t" + cipherSuite + "\thandshake failed: "
+                + TestUtils.rootCause(e));
+            return;
+          }
+          long nanos = System.nanoTime() - start;
+          String mismatch = mismatch(client.session(), protocol, cipherSuite);
+          if (mismatch != null) {
+            System.err.println(protocol + "\t" + cipherSuite + "\tnot pinned, negotiated "
+                + mismatch);
+            return;
+          }
+          if (i >= WARMUP_HANDSHAKES) {
+            histogram.record(nanos);
+          }
+
+          // Lets TLS 1.3 clients process the session ticket before closing.
+          client.sendMessage();
+          TestUtils.wait(client.readReply());
+        } finally {
+          client.stop();
+        }
+      }
+
+      Client client = factory.newClient(server.port(), false);
+      try {
+        TestUtils.wait(client.start());
+        long chunks = megabytes * 1024 * 1024 / CHUNK_SIZE;
+        StreamingMain.stream(client, chunks / 4);
+        long start = System.nanoTime();
+        StreamingMain.stream(client, chunks);
+        long nanos = System.nanoTime() - start;
+
+        double handshakesPerSecond = TimeUnit.SECONDS.toNanos(1) / histogram.meanNanos();
+        double megabytesPerSecond =
+            chunks * CHUNK_SIZE / (1024.0 * 1024) / nanos * TimeUnit.SECONDS.toNanos(1);
+        System.err.println(String.format("%s\t%s\t%.1f\t%.1f\t%.1f\t%.1f", protocol,
+            cipherSuite, handshakesPerSecond, histogram.percentileNanos(50) / 1000.0,
+            histogram.percentileNanos(99) / 1000.0, megabytesPerSecond));
+      } finally {
+        client.stop();
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Returns the protocol and suite the session negotiated if they differ from the pinned ones, or
+   * {@code null} if the pin held.
+   */
+  private static String mismatch(SSLSession session, String protocol, String cipherSuite) {
+    if (protocol.equals(session.getProtocol()) && cipherSuite.equals(session.getCipherSuite())) {
+      return null;
+    }
+    return session.getProtocol() + " " + session.getCipherSuite();
+  }
+}
@@ -1,10 +1,41 @@
 package org.conscrypt;
 
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+import javax.net.ssl.SSLSession;
 
+/**
+ * A client that sends messages to a {@link Server} and reads back the echoes. Any number of
+ * messages may be in flight: a caller that wants to pipeline starts reading the replies with
+ * {@link #readReplies} before sending, so that the replies are drained while it is still sending.
+ * The returned futures may complete on an I/O thread, so dependent actions that block should use
+ * the {@code *Async} variants.
+ */
 interface Client {
-  Future<?> start();
-  void sendMessage();
-  Future<?> readReply();
+  CompletableFuture<Void> start();
+
+  /**
+   * Sends a single message to the server.
+   *
+   * @return {@code false} if the client has too much output pending and the caller should stop
+   *     sending for now. Sending anyway blocks until the backlog has drained.
+   */
+  boolean sendMessage();
+
+  default CompletableFuture<Void> readReply() {
+    return readReplies(1, index -> {});
+  }
+
+  /**
+   * Reads the replies to the next {@code count} messages in the background, calling
+   * {@code onReply} with the zero-based index of each one as soon as it has been read.
+   */
+  CompletableFuture<Void> readReplies(int count, IntConsumer onReply);
+
+  /**
+   * Returns the session negotiated by the handshake, once {@link #start()} has completed.
+   */
+  SSLSession session();
+
   void stop();
 }
@@ -0,0 +1,71 @@
+package org.conscrypt;
+
+import java.security.Provider;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import org.conscrypt.TestUtils.Role;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what it costs an endpoint to get its {@link SSLContext}: cold, parsing the key
+ * material from the classpath first, which for clients is only the CA certificate; warm,
+ * building a new context from already parsed key material; and cached, looking up a context
+ * that was built before.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContextSetupBenchmark {
+  @Param
+  public BenchmarkProvider provider;
+
+  private Provider providerInstance;
+
+  @Setup
+  public void setUp() {
+    providerInstance = provider.newProvider();
+  }
+
+  @Benchmark
+  public SSLContext coldClientContext() {
+    return TestUtils.newClientContext(providerInstance, KeyMaterial.loadClient());
+  }
+
+  @Benchmark
+  public SSLContext coldServerContext() {
+    return TestUtils.newServerContext(providerInstance, KeyMaterial.load());
+  }
+
+  @Benchmark
+  public SSLContext warmClientContext() {
+    return TestUtils.newClientContext(providerInstance);
+  }
+
+  @Benchmark
+  public SSLContext warmServerContext() {
+    return TestUtils.newServerContext(providerInstance);
+  }
+
+  @Benchmark
+  public SSLContext cachedClientContext() {
+    return TestUtils.cachedContext(providerInstance, Role.CLIENT);
+  }
+
+  @Benchmark
+  public SSLContext cachedServerContext() {
+    return TestUtils.cachedContext(providerInstance, Role.SERVER);
+  }
+}
@@ -0,0 +1,143 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Opens bursts of concurrent connections against an {@link EngineEventLoopServer} and compares
+ * handshake throughput and latency when the server runs delegated tasks inline on its loops versus
+ * on {@link DelegatedTaskRunner} pools of different sizes. The runner metrics printed for each
+ * pool size show how deep its queue got and how long tasks took.
+ *
+ * <p>Only the JDK provider hands out delegated tasks; Conscrypt does all handshake work inside
+ * {@code wrap} and {@code unwrap}, so the pool size makes no difference for it.
+ *
+ * <p>Arguments (all optional): connections per burst, a comma-separated list of pool sizes where 0
+ * means inline, and the number of server loops.
+ */
+public class DelegatedTaskMain {
+  private static final int WARMUP_CONNECTIONS = 200;
+
+  public static void main(String[] args) {
+    try {
+      int cores = Runtime.getRuntime().availableProcessors();
+      int connections = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+      String[] poolSizes =
+          (args.length > 1 ? args[1] : "0,1,2," + cores + "," + 2 * cores).split(",");
+      int serverLoops = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (String poolSize : poolSizes) {
+          int threads = Integer.parseInt(poolSize);
+          DelegatedTaskRunner runner = threads > 0 ? new DelegatedTaskRunner(threads) : null;
+          try {
+            EndpointOptions options = new EndpointOptions()
+                .eventLoopThreads(serverLoops)
+                .delegatedTaskRunner(runner);
+            Server server =
+                new EngineEndpointFactory(provider.newProvider(), options).newServer(false);
+            TestUtils.wait(server.start());
+            try {
+              SSLContext clientContext = TestUtils.newClientContext(provider.newProvider());
+              burst(clientContext, server.port(), WARMUP_CONNECTIONS);
+              if (runner != null) {
+                runner.reset();
+              }
+
+              long start = System.nanoTime();
+              Histogram latency = burst(clientContext, server.port(), connections);
+              double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+              System.err.println(String.format("provider=%s, serverLoops=%d, taskThreads=%s: "
+                      + "%.1f handshakes/s%n  handshake: %s", provider, serverLoops,
+                  threads > 0 ? poolSize : "inline", connections / seconds, latency));
+              if (runner != null) {
+                System.err.println("  " + runner);
+              }
+            } finally {
+              server.stop();
+            }
+          } finally {
+            if (runner != null) {
+              runner.shutdown();
+            }
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Connects the given number of clients as fast as possible and waits for all of their
+   * handshakes to finish.
+   *
+   * @return the latency of each client's handshake, measured from its TCP connect.
+   */
+  private static Histogram burst(SSLContext clientContext, int port, int connections)
+      throws IOException, InterruptedException {
+    EndpointOptions clientOptions = new EndpointOptions();
+    int clientLoopCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    EngineEventLoop[] clientLoops = new EngineEventLoop[clientLoopCount];
+    ExecutorService executor = Executors.newFixedThreadPool(clientLoopCount);
+    for (int i = 0; i < clientLoopCount; i++) {
+      clientLoops[i] = new EngineEventLoop();
+      executor.submit(clientLoops[i]);
+    }
+
+    try {
+      HandshakeHandler handler = new HandshakeHandler(connections);
+      for (int i = 0; i < connections; i++) {
+        long start = System.nanoTime();
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        EngineWrapper engineWrapper = new EngineWrapper(
+            EngineClient.newClientEngine(clientContext, clientOptions, port, false),
+            clientOptions);
+        handler.startTimes.put(engineWrapper, start);
+        clientLoops[i % clientLoopCount].register(channel, engineWrapper, handler);
+      }
+      if (!handler.handshakes.await(5, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("Timed out waiting for handshakes");
+      }
+      return handler.latency;
+    } finally {
+      for (EngineEventLoop loop : clientLoops) {
+        loop.shutdown();
+      }
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  private static final class HandshakeHandler implements EngineEventLoop.Handler {
+    private final CountDownLatch handshakes;
+    private final Map<EngineWrapper, Long> startTimes = new ConcurrentHashMap<>();
+    private final Histogram latency = new Histogram();
+
+    HandshakeHandler(int connections) {
+      handshakes = new CountDownLatch(connections);
+    }
+
+    @Override
+    public void handshakeComplete(EngineEventLoop.Connection connection) {
+      long nanos = System.nanoTime() - startTimes.get(connection.engineWrapper());
+      synchronized (latency) {
+        latency.record(nanos);
+      }
+      handshakes.countDown();
+    }
+
+    @Override
+    public void messagesReceived(EngineEventLoop.Connection connection, int count) {
+    }
+  }
+}
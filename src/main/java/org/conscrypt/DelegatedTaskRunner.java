@@ -0,0 +1,114 @@
+package org.conscrypt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Runs {@link SSLEngine#getDelegatedTask() delegated tasks} on a dedicated pool of worker threads
+ * so that expensive handshake work, such as signing and certificate validation, doesn't block the
+ * I/O thread. Records how deep the queue gets and how long tasks wait and run, to help size the
+ * pool.
+ */
+final class DelegatedTaskRunner {
+  private final ExecutorService executor;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final Histogram queueWait = new Histogram();
+  private final Histogram taskTime = new Histogram();
+  private long depthSamples;
+  private long depthTotal;
+  private int maxDepth;
+
+  DelegatedTaskRunner(int threads) {
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "delegated-task-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Runs all of the engine's pending delegated tasks on the pool, then calls {@code onComplete}
+   * from the worker thread.
+   */
+  void runAsync(SSLEngine engine, Runnable onComplete) {
+    submit(engine, onComplete);
+  }
+
+  /**
+   * Runs all of the engine's pending delegated tasks on the pool and waits for them to finish.
+   */
+  void runAndWait(SSLEngine engine) {
+    try {
+      submit(engine, null).get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Discards all metrics recorded so far, for example at the end of a warm-up period.
+   */
+  synchronized void reset() {
+    queueWait.reset();
+    taskTime.reset();
+    depthSamples = 0;
+    depthTotal = 0;
+    maxDepth = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("queueDepth(mean=%.1f, max=%d)%n  queueWait: %s%n  taskTime: %s",
+        depthSamples == 0 ? 0 : (double) depthTotal / depthSamples, maxDepth, queueWait,
+        taskTime);
+  }
+
+  private Future<?> submit(SSLEngine engine, Runnable onComplete) {
+    List<Runnable> tasks = new ArrayList<>();
+    for (Runnable task; (task = engine.getDelegatedTask()) != null;) {
+      tasks.add(task);
+    }
+
+    long submitted = System.nanoTime();
+    recordDepth(queueDepth.incrementAndGet());
+    return executor.submit(() -> {
+      queueDepth.decrementAndGet();
+      long start = System.nanoTime();
+      recordQueueWait(start - submitted);
+      for (Runnable task : tasks) {
+        task.run();
+        long end = System.nanoTime();
+        recordTaskTime(end - start);
+        start = end;
+      }
+      if (onComplete != null) {
+        onComplete.run();
+      }
+    });
+  }
+
+  private synchronized void recordDepth(int depth) {
+    depthSamples++;
+    depthTotal += depth;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  private synchronized void recordQueueWait(long nanos) {
+    queueWait.record(nanos);
+  }
+
+  private synchronized void recordTaskTime(long nanos) {
+    taskTime.record(nanos);
+  }
+}
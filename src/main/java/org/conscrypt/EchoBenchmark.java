@@ -0,0 +1,53 @@
+package org.conscrypt;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the round-trip of a single message echoed over an established connection.
+ */
+public class EchoBenchmark extends EndpointBenchmark {
+  @Param({"5", "1024", "16384"})
+  public int messageLength;
+
+  @Override
+  EndpointOptions newOptions() {
+    return super.newOptions().messageLength(messageLength);
+  }
+
+  @Setup
+  public void setUp() {
+    newEndpoints();
+    handshake();
+  }
+
+  @TearDown
+  public void tearDown() {
+    stopEndpoints();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void echoThroughput() {
+    echo();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void echoLatency() {
+    echo();
+  }
+
+  private void echo() {
+    client.sendMessage();
+    TestUtils.wait(client.readReply());
+  }
+}
@@ -0,0 +1,63 @@
+package org.conscrypt;
+
+import java.util.concurrent.Future;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parameters and connection management shared by the JMH endpoint benchmarks. Every benchmark
+ * runs against each combination of endpoint type, provider and ALPN.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public abstract class EndpointBenchmark {
+  @Param
+  public EndpointType endpoint;
+
+  @Param
+  public BenchmarkProvider provider;
+
+  @Param({"false", "true"})
+  public boolean alpn;
+
+  Server server;
+  Client client;
+  private Future<?> serverStartFuture;
+
+  /**
+   * Returns the options to create the endpoints with.
+   */
+  EndpointOptions newOptions() {
+    return new EndpointOptions();
+  }
+
+  /**
+   * Creates a new server and a client for it without connecting them.
+   */
+  void newEndpoints() {
+    EndpointFactory factory = endpoint.newFactory(provider.newProvider(), newOptions());
+    server = factory.newServer(alpn);
+    serverStartFuture = server.start();
+    client = factory.newClient(server.port(), alpn);
+  }
+
+  /**
+   * Connects the client created by {@link #newEndpoints} and waits for the handshake to finish
+   * on both sides.
+   */
+  void handshake() {
+    TestUtils.wait(client.start());
+    TestUtils.wait(serverStartFuture);
+  }
+
+  void stopEndpoints() {
+    client.stop();
+    server.stop();
+  }
+}
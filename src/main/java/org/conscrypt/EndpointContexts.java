@@ -0,0 +1,55 @@
+package org.conscrypt;
+
+import java.security.Provider;
+import javax.net.ssl.SSLContext;
+import org.conscrypt.TestUtils.Role;
+
+/**
+ * Hands out the {@link SSLContext}s that an {@link EndpointFactory}'s endpoints are created with,
+ * according to its {@link EndpointOptions}: cached process-wide, shared by the factory's clients,
+ * or fresh for every endpoint. Only contexts that this class creates itself are configured with
+ * the options' session cache settings; cached contexts are shared with the rest of the process and
+ * are never changed.
+ */
+final class EndpointContexts {
+  private final Provider provider;
+  private final EndpointOptions options;
+  private SSLContext clientContext;
+
+  EndpointContexts(Provider provider, EndpointOptions options) {
+    if (options.cacheContexts() && options.configuresSessionCaches()) {
+      throw new IllegalArgumentException(
+          "Session cache settings can't be applied to cached contexts");
+    }
+    this.provider = provider;
+    this.options = options;
+  }
+
+  synchronized SSLContext clientContext() {
+    if (options.cacheContexts()) {
+      return TestUtils.cachedContext(provider, Role.CLIENT, options.keyMaterial());
+    }
+    if (!options.shareClientContext()) {
+      return newClientContext();
+    }
+    if (clientContext == null) {
+      clientContext = newClientContext();
+    }
+    return clientContext;
+  }
+
+  SSLContext newServerContext() {
+    if (options.cacheContexts()) {
+      return TestUtils.cachedContext(provider, Role.SERVER, options.keyMaterial());
+    }
+    SSLContext context = TestUtils.newServerContext(provider, options.keyMaterial());
+    options.configureServerContext(context);
+    return context;
+  }
+
+  private SSLContext newClientContext() {
+    SSLContext context = TestUtils.newClientContext(provider, options.keyMaterial());
+    options.configureClientContext(context);
+    return context;
+  }
+}
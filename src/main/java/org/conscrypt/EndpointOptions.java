@@ -0,0 +1,434 @@
+package org.conscrypt;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Settings shared by the endpoints an {@link EndpointFactory} creates. Options that only make
+ * sense for {@link SSLEngine}-based endpoints are ignored by the socket-based ones.
+ */
+final class EndpointOptions {
+  private int messageLength = TestUtils.MESSAGE_LENGTH;
+  private Payload payload = Payload.TEXT;
+  private boolean pollingReads;
+  private int lowWaterMark = 32 * 1024;
+  private int highWaterMark = 64 * 1024;
+  private FlushPolicy flushPolicy;
+  private int flushThreshold = 16 * 1024;
+  private int eventLoopThreads;
+  private boolean threadPerConnection;
+  private boolean virtualThreads;
+  private boolean shareClientContext;
+  private boolean cacheContexts;
+  private int serverSessionCacheSize = -1;
+  private int serverSessionTimeout = -1;
+  private int clientSessionCacheSize = -1;
+  private Boolean sessionTickets;
+  private String[] protocols;
+  private String[] cipherSuites;
+  private KeyMaterial keyMaterial;
+  private DelegatedTaskRunner delegatedTaskRunner;
+  private HandshakePool handshakePool;
+  private BufferStrategy bufferStrategy = BufferStrategy.DIRECT_HEAP_MESSAGES;
+  private BufferPool bufferPool;
+  private BufferPool conscryptBufferPool;
+  private PhaseHistograms phaseHistograms;
+
+  /**
+   * Sets the size in bytes of every message the clients send and the servers echo.
+   */
+  EndpointOptions messageLength(int messageLength) {
+    if (messageLength <= 0) {
+      throw new IllegalArgumentException("Invalid message length: " + messageLength);
+    }
+    this.messageLength = messageLength;
+    return this;
+  }
+
+  int messageLength() {
+    return messageLength;
+  }
+
+  /**
+   * Sets the content of every message, {@link Payload#TEXT} by default.
+   */
+  EndpointOptions payload(Payload payload) {
+    this.payload = payload;
+    return this;
+  }
+
+  Payload payload() {
+    return payload;
+  }
+
+  /**
+   * Returns the bytes of the message the endpoints exchange. The array is shared and must not be
+   * modified.
+   */
+  byte[] messageBytes() {
+    return TestUtils.messageBytes(payload, messageLength);
+  }
+
+  /**
+   * If {@code true}, an empty channel read sleeps for a fixed interval before retrying rather
+   * than waiting on a {@link java.nio.channels.Selector}. Only useful as a baseline for
+   * measuring the latency the polling adds.
+   */
+  EndpointOptions pollingReads(boolean pollingReads) {
+    this.pollingReads = pollingReads;
+    return this;
+  }
+
+  boolean pollingReads() {
+    return pollingReads;
+  }
+
+  /**
+   * Sets the number of bytes of queued, not yet written TLS records at which a connection stops
+   * accepting new messages ({@code highWaterMark}) and at which it accepts them again
+   * ({@code lowWaterMark}).
+   */
+  EndpointOptions writeBufferWaterMark(int lowWaterMark, int highWaterMark) {
+    if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+      throw new IllegalArgumentException(
+          "Invalid watermarks: low=" + lowWaterMark + ", high=" + highWaterMark);
+    }
+    this.lowWaterMark = lowWaterMark;
+    this.highWaterMark = highWaterMark;
+    return this;
+  }
+
+  int lowWaterMark() {
+    return lowWaterMark;
+  }
+
+  int highWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * If set, event loop servers wrap the replies to everything a read delivered in one go,
+   * coalescing them into as few records as possible, and write the batch according to this
+   * policy. {@code null}, the default, wraps and writes every reply on its own.
+   */
+  EndpointOptions flushPolicy(FlushPolicy flushPolicy) {
+    this.flushPolicy = flushPolicy;
+    return this;
+  }
+
+  FlushPolicy flushPolicy() {
+    return flushPolicy;
+  }
+
+  /**
+   * Sets how many batched bytes make {@link FlushPolicy#SIZE_THRESHOLD} write, 16 KiB by default.
+   */
+  EndpointOptions flushThreshold(int flushThreshold) {
+    this.flushThreshold = flushThreshold;
+    return this;
+  }
+
+  int flushThreshold() {
+    return flushThreshold;
+  }
+
+  /**
+   * If greater than zero, servers accept any number of connections and serve them from this many
+   * {@link EngineEventLoop} threads, rather than handshaking and echoing a single connection.
+   * Asynchronous channel servers always serve any number of connections and size their channel
+   * group with this, or one thread per core if it isn't set.
+   */
+  EndpointOptions eventLoopThreads(int eventLoopThreads) {
+    this.eventLoopThreads = eventLoopThreads;
+    return this;
+  }
+
+  int eventLoopThreads() {
+    return eventLoopThreads;
+  }
+
+  /**
+   * If {@code true}, socket servers accept any number of connections and handshake and echo each
+   * of them on its own thread, rather than serving a single connection.
+   */
+  EndpointOptions threadPerConnection(boolean threadPerConnection) {
+    this.threadPerConnection = threadPerConnection;
+    return this;
+  }
+
+  boolean threadPerConnection() {
+    return threadPerConnection;
+  }
+
+  /**
+   * If {@code true}, socket-based endpoints do their blocking I/O on virtual threads instead of
+   * platform threads. In thread-per-connection mode, servers start a virtual thread for every
+   * accepted connection. Requires {@link VirtualThreads#isAvailable()}.
+   */
+  EndpointOptions virtualThreads(boolean virtualThreads) {
+    if (virtualThreads && !VirtualThreads.isAvailable()) {
+      throw new UnsupportedOperationException(
+          "Virtual threads require building with the jdk21 profile on JDK 21 or newer");
+    }
+    this.virtualThreads = virtualThreads;
+    return this;
+  }
+
+  boolean virtualThreads() {
+    return virtualThreads;
+  }
+
+  /**
+   * If {@code true}, all clients created by a factory share a single {@link SSLContext}, and
+   * therefore its client session cache, so that reconnecting to the same server can resume the
+   * previous session. Otherwise every client gets a fresh context.
+   */
+  EndpointOptions shareClientContext(boolean shareClientContext) {
+    this.shareClientContext = shareClientContext;
+    return this;
+  }
+
+  boolean shareClientContext() {
+    return shareClientContext;
+  }
+
+  /**
+   * If {@code true}, endpoints take their contexts from the process-wide cache behind
+   * {@link TestUtils#cachedContext}, so that creating them costs no context setup. All clients
+   * then share one session cache per provider, as do all servers, so handshakes may resume
+   * sessions from earlier endpoints. Since changing a cached context would change it for
+   * everyone else too, this can't be combined with any of the session cache settings.
+   */
+  EndpointOptions cacheContexts(boolean cacheContexts) {
+    this.cacheContexts = cacheContexts;
+    return this;
+  }
+
+  boolean cacheContexts() {
+    return cacheContexts;
+  }
+
+  /**
+   * Sets the maximum number of sessions in the server session cache, where zero means no limit.
+   */
+  EndpointOptions serverSessionCacheSize(int serverSessionCacheSize) {
+    this.serverSessionCacheSize = serverSessionCacheSize;
+    return this;
+  }
+
+  /**
+   * Sets the time in seconds after which cached server sessions expire, where zero means never.
+   */
+  EndpointOptions serverSessionTimeout(int serverSessionTimeout) {
+    this.serverSessionTimeout = serverSessionTimeout;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of sessions in the client session cache, where zero means no limit.
+   * Mostly useful together with {@link #shareClientContext}, since otherwise every client has a
+   * cache of its own.
+   */
+  EndpointOptions clientSessionCacheSize(int clientSessionCacheSize) {
+    this.clientSessionCacheSize = clientSessionCacheSize;
+    return this;
+  }
+
+  /**
+   * Whether any of the session cache settings differ from the provider's defaults.
+   */
+  boolean configuresSessionCaches() {
+    return serverSessionCacheSize >= 0 || serverSessionTimeout >= 0
+        || clientSessionCacheSize >= 0;
+  }
+
+  /**
+   * Enables or disables session tickets on both clients and servers. Only Conscrypt supports
+   * this per connection; the JDK provider reads the {@code jdk.tls.client.*} and
+   * {@code jdk.tls.server.enableSessionTicketExtension} system properties once at startup
+   * instead.
+   */
+  EndpointOptions sessionTickets(boolean sessionTickets) {
+    this.sessionTickets = sessionTickets;
+    return this;
+  }
+
+  /**
+   * Restricts every client and server to the given protocol versions, such as
+   * {@code "TLSv1.3"}. {@code null}, the default, keeps the provider's defaults.
+   */
+  EndpointOptions protocols(String... protocols) {
+    this.protocols = protocols;
+    return this;
+  }
+
+  /**
+   * Restricts every client and server to the given cipher suites. {@code null}, the default,
+   * keeps the provider's defaults. Providers may not honor the restriction for every protocol
+   * version, so callers that depend on it should check the suite the session ended up with.
+   */
+  EndpointOptions cipherSuites(String... cipherSuites) {
+    this.cipherSuites = cipherSuites;
+    return this;
+  }
+
+  /**
+   * Sets the certificates and keys that contexts are created with. {@code null}, the default,
+   * uses the ones from {@link KeyMaterial#get()}.
+   */
+  EndpointOptions keyMaterial(KeyMaterial keyMaterial) {
+    this.keyMaterial = keyMaterial;
+    return this;
+  }
+
+  KeyMaterial keyMaterial() {
+    return keyMaterial != null ? keyMaterial : KeyMaterial.get();
+  }
+
+  /**
+   * Offloads the engines' delegated tasks to the given runner instead of running them on the I/O
+   * thread. {@code null}, the default, runs them inline. The caller owns the runner and is
+   * responsible for shutting it down.
+   */
+  EndpointOptions delegatedTaskRunner(DelegatedTaskRunner delegatedTaskRunner) {
+    this.delegatedTaskRunner = delegatedTaskRunner;
+    return this;
+  }
+
+  DelegatedTaskRunner delegatedTaskRunner() {
+    return delegatedTaskRunner;
+  }
+
+  /**
+   * If set, thread-per-connection socket servers and event loop servers handshake every accepted
+   * connection on the given pool, and close the connections it rejects, before serving them on
+   * their usual threads. {@code null}, the default, handshakes on the threads that serve the
+   * connections. The caller owns the pool and is responsible for shutting it down.
+   */
+  EndpointOptions handshakePool(HandshakePool handshakePool) {
+    this.handshakePool = handshakePool;
+    return this;
+  }
+
+  HandshakePool handshakePool() {
+    return handshakePool;
+  }
+
+  /**
+   * Sets whether engines get heap or direct packet and application buffers,
+   * {@link BufferStrategy#DIRECT_HEAP_MESSAGES} by default.
+   */
+  EndpointOptions bufferStrategy(BufferStrategy bufferStrategy) {
+    this.bufferStrategy = bufferStrategy;
+    return this;
+  }
+
+  BufferStrategy bufferStrategy() {
+    return bufferStrategy;
+  }
+
+  /**
+   * If set, engines borrow their network and application buffers from the given pool only while
+   * they wrap or unwrap, instead of each allocating its own for the lifetime of the connection.
+   * {@code null}, the default, keeps the dedicated buffers.
+   */
+  EndpointOptions bufferPool(BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+    return this;
+  }
+
+  BufferPool bufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * If set, Conscrypt engines borrow the native buffers they copy heap buffers into from the given
+   * pool through a {@link PooledBufferAllocator}, instead of allocating and holding on to their
+   * own. Other providers ignore it.
+   */
+  EndpointOptions conscryptBufferPool(BufferPool conscryptBufferPool) {
+    this.conscryptBufferPool = conscryptBufferPool;
+    return this;
+  }
+
+  /**
+   * If set, engine-based endpoints record how long each phase of their work takes into the given
+   * histograms. {@code null}, the default, records nothing.
+   */
+  EndpointOptions phaseHistograms(PhaseHistograms phaseHistograms) {
+    this.phaseHistograms = phaseHistograms;
+    return this;
+  }
+
+  PhaseHistograms phaseHistograms() {
+    return phaseHistograms;
+  }
+
+  /**
+   * Applies the client-wide settings to a newly created client context.
+   */
+  void configureClientContext(SSLContext context) {
+    if (clientSessionCacheSize >= 0) {
+      context.getClientSessionContext().setSessionCacheSize(clientSessionCacheSize);
+    }
+  }
+
+  /**
+   * Applies the server-wide settings to a newly created server context.
+   */
+  void configureServerContext(SSLContext context) {
+    SSLSessionContext sessionContext = context.getServerSessionContext();
+    if (serverSessionCacheSize >= 0) {
+      sessionContext.setSessionCacheSize(serverSessionCacheSize);
+    }
+    if (serverSessionTimeout >= 0) {
+      sessionContext.setSessionTimeout(serverSessionTimeout);
+    }
+  }
+
+  /**
+   * Applies the per-connection settings to a newly created engine.
+   */
+  void configure(SSLEngine engine) {
+    if (protocols != null) {
+      engine.setEnabledProtocols(protocols);
+    }
+    if (cipherSuites != null) {
+      engine.setEnabledCipherSuites(cipherSuites);
+    }
+    if (conscryptBufferPool != null && Conscrypt.isConscrypt(engine)) {
+      Conscrypt.setBufferAllocator(engine, new PooledBufferAllocator(conscryptBufferPool));
+    }
+    if (sessionTickets != null && Conscrypt.isConscrypt(engine)) {
+      setUseSessionTickets(SSLEngine.class, engine);
+    }
+  }
+
+  /**
+   * Applies the per-connection settings to a newly created or accepted socket.
+   */
+  void configure(SSLSocket socket) {
+    if (protocols != null) {
+      socket.setEnabledProtocols(protocols);
+    }
+    if (cipherSuites != null) {
+      socket.setEnabledCipherSuites(cipherSuites);
+    }
+    if (sessionTickets != null && Conscrypt.isConscrypt(socket)) {
+      setUseSessionTickets(SSLSocket.class, socket);
+    }
+  }
+
+  private void setUseSessionTickets(Class<?> type, Object engineOrSocket) {
+    try {
+      Method method = Conscrypt.class.getMethod("setUseSessionTickets", type, boolean.class);
+      method.invoke(null, engineOrSocket, sessionTickets);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
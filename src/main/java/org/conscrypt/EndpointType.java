@@ -0,0 +1,35 @@
+package org.conscrypt;
+
+import java.security.Provider;
+
+/**
+ * The {@link EndpointFactory} implementations that benchmarks can be parameterized with.
+ */
+public enum EndpointType {
+  ENGINE {
+    @Override
+    EndpointFactory newFactory(Provider provider, EndpointOptions options) {
+      return new EngineEndpointFactory(provider, options);
+    }
+  },
+  SOCKET {
+    @Override
+    EndpointFactory newFactory(Provider provider, EndpointOptions options) {
+      return new SocketEndpointFactory(provider, options);
+    }
+  },
+  MEMORY {
+    @Override
+    EndpointFactory newFactory(Provider provider, EndpointOptions options) {
+      return new MemoryEndpointFactory(provider, options);
+    }
+  },
+  ASYNC_CHANNEL {
+    @Override
+    EndpointFactory newFactory(Provider provider, EndpointOptions options) {
+      return new AsyncChannelEndpointFactory(provider, options);
+    }
+  };
+
+  abstract EndpointFactory newFactory(Provider provider, EndpointOptions options);
+}
@@ -4,93 +4,127 @@ import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
 import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntConsumer;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
 
 public class EngineClient implements Client {
   private final EngineWrapper engineWrapper;
+  private final Transport transport;
   private final int port;
   private final boolean useAlpn;
-  private SocketChannel channel;
+  private ByteChannel channel;
   private ExecutorService executor;
 
-  EngineClient(SSLContext context, int port, boolean useAlpn) {
+  EngineClient(SSLContext context, EndpointOptions options, int port, boolean useAlpn,
+      Transport transport) {
+    this.transport = transport;
     this.port = port;
     this.useAlpn = useAlpn;
 
-    // Create and configure the engine.
-    SSLEngine engine = context.createSSLEngine();
+    engineWrapper = new EngineWrapper(newClientEngine(context, options, port, useAlpn), options);
+  }
+
+  static SSLEngine newClientEngine(
+      SSLContext context, EndpointOptions options, int port, boolean useAlpn) {
+    // Create and configure the engine. The peer address lets the engine resume sessions.
+    SSLEngine engine = context.createSSLEngine("localhost", port);
     engine.setUseClientMode(true);
+    options.configure(engine);
     if (useAlpn) {
-      if (!Conscrypt.isConscrypt(engine)) {
-        throw new IllegalArgumentException("ALPN is only supported for Conscrypt sockets");
-      }
-      Conscrypt.setAlpnProtocols(engine, new String[] {"foo", "bar", ALPN_PROTOCOL});
+      Alpn.setProtocols(engine, "foo", "bar", ALPN_PROTOCOL);
     }
-
-    engineWrapper = new EngineWrapper(engine);
+    return engine;
   }
 
   @Override
-  public Future<?> start() {
+  public CompletableFuture<Void> start() {
     try {
       executor = Executors.newSingleThreadExecutor();
-      channel = SocketChannel.open(new InetSocketAddress("localhost", port));
-      channel.configureBlocking(false);
+      channel = transport.connect(port);
 
-      return executor.submit(() -> {
+      return CompletableFuture.runAsync(() -> {
         try {
           engineWrapper.doHandshake(channel);
 
           if (useAlpn) {
-            assertEquals(ALPN_PROTOCOL, Conscrypt.getAlpnSelectedProtocol(engineWrapper.engine()));
+            assertEquals(ALPN_PROTOCOL, Alpn.selectedProtocol(engineWrapper.engine()));
           }
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
-      });
+      }, executor);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
-  public void sendMessage() {
+  public boolean sendMessage() {
     try {
-      engineWrapper.sendMessage(channel);
+      return engineWrapper.sendMessage(channel);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
-  public Future<?> readReply() {
-    return executor.submit(() -> {
+  public CompletableFuture<Void> readReplies(int count, IntConsumer onReply) {
+    return CompletableFuture.runAsync(() -> {
       try {
-        engineWrapper.readMessage(channel);
+        for (int i = 0; i < count;) {
+          // Everything one read brought in is handed over before reading again.
+          for (int replies = engineWrapper.readMessages(channel, count - i); replies > 0;
+              replies--) {
+            onReply.accept(i++);
+          }
+        }
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
-    });
+    }, executor);
+  }
+
+  @Override
+  public SSLSession session() {
+    return engineWrapper.engine().getSession();
   }
 
   @Override
   public void stop() {
     try {
       if (channel != null) {
+        // Exchange close_notify on the I/O thread, after any read still in flight. If that read
+        // never finishes, closing the channel below ends it.
+        Future<?> shutdown = executor.submit(() -> {
+          engineWrapper.shutdown(channel);
+          return null;
+        });
+        try {
+          shutdown.get(EngineWrapper.CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+          // The connection is already broken, or the server isn't responding.
+        }
         channel.close();
       }
+      engineWrapper.close();
       if (executor != null) {
         executor.shutdown();
         executor.awaitTermination(5, TimeUnit.SECONDS);
         executor = null;
       }
+      // The shutdown above only returns the pooled buffer if it finishes in time, and the I/O
+      // thread is done with it by now either way.
+      engineWrapper.releaseBuffers();
     } catch (IOException | InterruptedException e) {
       throw new RuntimeException(e);
     }
@@ -1,21 +1,41 @@
 package org.conscrypt;
 
 import java.security.Provider;
+import javax.net.ssl.SSLContext;
 
 final class EngineEndpointFactory implements EndpointFactory {
-  private final Provider provider;
+  private final EndpointOptions options;
+  private final Transport transport;
+  private final EndpointContexts contexts;
 
   EngineEndpointFactory(Provider provider) {
-    this.provider = provider;
+    this(provider, new EndpointOptions());
+  }
+
+  EngineEndpointFactory(Provider provider, EndpointOptions options) {
+    this(provider, options, TcpTransport.INSTANCE);
+  }
+
+  EngineEndpointFactory(Provider provider, EndpointOptions options, Transport transport) {
+    this.options = options;
+    this.transport = transport;
+    contexts = new EndpointContexts(provider, options);
   }
 
   @Override
   public Client newClient(int port, boolean useAlpn) {
-    return new EngineClient(TestUtils.newClientContext(provider), port, useAlpn);
+    return new EngineClient(contexts.clientContext(), options, port, useAlpn, transport);
   }
 
   @Override
   public Server newServer(boolean useAlpn) {
-    return new EngineServer(TestUtils.newServerContext(provider), useAlpn);
+    SSLContext context = contexts.newServerContext();
+    if (options.eventLoopThreads() > 0) {
+      if (transport != TcpTransport.INSTANCE) {
+        throw new IllegalArgumentException("Event loop servers require TCP");
+      }
+      return new EngineEventLoopServer(context, options, useAlpn);
+    }
+    return new EngineServer(context, options, useAlpn, transport);
   }
 }
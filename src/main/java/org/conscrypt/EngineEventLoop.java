@@ -0,0 +1,346 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single-threaded selector loop that drives any number of non-blocking {@link EngineWrapper}
+ * connections. Handshakes, reads and writes for a connection all happen on the loop thread.
+ */
+final class EngineEventLoop implements Runnable {
+  /**
+   * Callbacks for connection events. All methods are invoked on the loop thread and must not
+   * block.
+   */
+  interface Handler {
+    /**
+     * Called once the channel is connected, right before the handshake starts.
+     */
+    default void connected(Connection connection) {}
+
+    void handshakeComplete(Connection connection) throws IOException;
+
+    void messagesReceived(Connection connection, int count) throws IOException;
+
+    /**
+     * Called once the connection has been closed, with the failure that closed it or
+     * {@code null} if it was closed deliberately.
+     */
+    default void closed(Connection connection, Throwable cause) {}
+  }
+
+  private final Selector selector;
+  private final Queue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+  private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+  private final List<Connection> connections = new ArrayList<>();
+  // Connections with batched records to write once the current tick's keys have been processed.
+  private final List<Connection> flushAtEndOfTick = new ArrayList<>();
+  private final AtomicInteger connectionCount = new AtomicInteger();
+  private volatile boolean running = true;
+  // Set under the lock on pendingRegistrations once the loop has exited, after which nothing can
+  // be registered any more.
+  private boolean terminated;
+
+  EngineEventLoop() {
+    try {
+      selector = Selector.open();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Hands a channel over to the loop, which starts the TLS handshake on it once it is connected.
+   * A non-blocking channel may still be connecting. May be called from any thread.
+   *
+   * @throws IllegalStateException if the loop has exited, in which case the channel is still the
+   *     caller's to close.
+   */
+  Connection register(SocketChannel channel, EngineWrapper engineWrapper, Handler handler) {
+    return register(new Connection(channel, engineWrapper, handler, false));
+  }
+
+  /**
+   * Hands over a connected channel whose handshake has already been done elsewhere, for example
+   * on a {@link HandshakePool}. The handler is told the handshake is complete as soon as the loop
+   * has registered the channel. May be called from any thread.
+   *
+   * @throws IllegalStateException if the loop has exited, like {@link #register}.
+   */
+  Connection adopt(SocketChannel channel, EngineWrapper engineWrapper, Handler handler) {
+    return register(new Connection(channel, engineWrapper, handler, true));
+  }
+
+  private Connection register(Connection connection) {
+    synchronized (pendingRegistrations) {
+      if (terminated) {
+        throw new IllegalStateException("The event loop has stopped");
+      }
+      pendingRegistrations.add(connection);
+    }
+    selector.wakeup();
+    return connection;
+  }
+
+  /**
+   * Runs the given task on the loop thread. May be called from any thread.
+   */
+  void execute(Runnable task) {
+    pendingTasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Returns the number of connections that are currently open on this loop.
+   */
+  int connectionCount() {
+    return connectionCount.get();
+  }
+
+  /**
+   * Stops the loop. All of its connections are closed on the loop thread before it exits.
+   */
+  void shutdown() {
+    running = false;
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (running) {
+        selector.select();
+        registerPending();
+        for (Runnable task; (task = pendingTasks.poll()) != null;) {
+          task.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          ((Connection) key.attachment()).process(key.readyOps());
+        }
+        flushBatches();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      for (Connection connection : new ArrayList<>(connections)) {
+        connection.close();
+      }
+      synchronized (pendingRegistrations) {
+        terminated = true;
+      }
+      // Whatever was registered in the meantime never got to the loop.
+      closePending();
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+        // Ignored.
+      }
+    }
+  }
+
+  private void closePending() {
+    for (Connection connection; (connection = pendingRegistrations.poll()) != null;) {
+      connection.close();
+    }
+  }
+
+  private void flushBatches() {
+    for (Connection connection : flushAtEndOfTick) {
+      connection.flushScheduled = false;
+      connection.flushBatch();
+    }
+    flushAtEndOfTick.clear();
+  }
+
+  private void registerPending() {
+    for (Connection connection; (connection = pendingRegistrations.poll()) != null;) {
+      try {
+        connection.channel.configureBlocking(false);
+        connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection registered = connection;
+        connection.engineWrapper.onDelegatedTasksComplete(
+            () -> execute(() -> registered.process(SelectionKey.OP_READ)));
+        connections.add(connection);
+        connectionCount.incrementAndGet();
+        if (connection.channel.isConnectionPending()) {
+          connection.key =
+              connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+          continue;
+        }
+        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+        connection.process(SelectionKey.OP_CONNECT);
+      } catch (IOException e) {
+        connection.close(e);
+      }
+    }
+  }
+
+  /**
+   * A single TLS connection owned by the loop.
+   */
+  final class Connection {
+    private final SocketChannel channel;
+    private final EngineWrapper engineWrapper;
+    private final Handler handler;
+    private final boolean handshaken;
+    private SelectionKey key;
+    private boolean handshakeComplete;
+    private boolean closed;
+    private boolean flushScheduled;
+
+    private Connection(SocketChannel channel, EngineWrapper engineWrapper, Handler handler,
+        boolean handshaken) {
+      this.channel = channel;
+      this.engineWrapper = engineWrapper;
+      this.handler = handler;
+      this.handshaken = handshaken;
+    }
+
+    EngineWrapper engineWrapper() {
+      return engineWrapper;
+    }
+
+    /**
+     * Queues a single message without blocking. The loop writes it out as the channel allows.
+     * Must be called on the loop thread, once the handshake is complete.
+     */
+    void sendMessage() throws IOException {
+      engineWrapper.queueMessage(channel);
+      if (engineWrapper.hasPendingOutput()) {
+        // Also needed when called from a task rather than a handler.
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Queues {@code count} messages without blocking. With a {@link FlushPolicy} configured, they
+     * are wrapped as one batch, and whatever the policy leaves unwritten is written at the end of
+     * the current tick. Must be called on the loop thread, once the handshake is complete.
+     */
+    void sendMessages(int count) throws IOException {
+      if (engineWrapper.options().flushPolicy() == null) {
+        for (int i = 0; i < count; i++) {
+          sendMessage();
+        }
+        return;
+      }
+      engineWrapper.queueMessages(channel, count);
+      if (engineWrapper.hasBatchedOutput() && !flushScheduled) {
+        flushScheduled = true;
+        flushAtEndOfTick.add(this);
+      } else if (engineWrapper.hasPendingOutput()) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void close() {
+      close(null);
+    }
+
+    void close(Throwable cause) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (connections.remove(this)) {
+        connectionCount.decrementAndGet();
+      }
+      if (channel.isConnected()) {
+        try {
+          // Best effort, a loop can't wait for the peer's close_notify.
+          engineWrapper.closeOutbound(channel);
+        } catch (IOException ignored) {
+          // The peer is already gone.
+        }
+      }
+      try {
+        channel.close();
+        engineWrapper.close();
+        engineWrapper.releaseBuffers();
+      } catch (IOException ignored) {
+        // Ignored.
+      }
+      handler.closed(this, cause);
+    }
+
+    private void process(int readyOps) {
+      if (closed) {
+        return;
+      }
+      try {
+        if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+          if (!channel.finishConnect()) {
+            return;
+          }
+          handler.connected(this);
+          if (!handshaken) {
+            engineWrapper.beginHandshake();
+          }
+
+          // Kick off the handshake, the client has to send the first flight. An adopted
+          // connection may already have records buffered from the end of its handshake.
+          readyOps = SelectionKey.OP_READ;
+        }
+        if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+          engineWrapper.flush(channel);
+        }
+        if ((readyOps & SelectionKey.OP_READ) != 0) {
+          int messages = engineWrapper.processInput(channel);
+          if (!handshakeComplete && !engineWrapper.isHandshaking()) {
+            handshakeComplete = true;
+            handler.handshakeComplete(this);
+          }
+          if (messages > 0) {
+            handler.messagesReceived(this, messages);
+          }
+        }
+        if (!closed) {
+          updateInterestOps();
+        }
+      } catch (IOException e) {
+        close(e);
+      } catch (Throwable e) {
+        e.printStackTrace();
+        close(e);
+      }
+    }
+
+    private void flushBatch() {
+      if (closed) {
+        return;
+      }
+      try {
+        engineWrapper.flush(channel);
+        updateInterestOps();
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void updateInterestOps() {
+      int interestOps = 0;
+      // Stop reading, and therefore producing replies, until the backlog drains. There's also no
+      // point in reading while the handshake waits for delegated tasks.
+      if (engineWrapper.isWritable() && !engineWrapper.hasDelegatedTasksInFlight()) {
+        interestOps |= SelectionKey.OP_READ;
+      }
+      if (engineWrapper.hasPendingOutput()) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(interestOps);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package org.conscrypt;
+
+import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * An engine-based echo server that serves any number of connections from a fixed set of
+ * {@link EngineEventLoop}s. Accepted connections are spread round-robin across the loops. With a
+ * {@link HandshakePool}, connections are only handed to a loop once the pool has handshaken
+ * them, so the loops spend all their time on established connections.
+ */
+final class EngineEventLoopServer implements Server {
+  private static final int ACCEPT_BACKLOG = 4096;
+
+  private final SSLContext context;
+  private final EndpointOptions options;
+  private final boolean useAlpn;
+  private final ServerSocketChannel serverChannel;
+  private final EngineEventLoop[] loops;
+  private final HandshakePool handshakePool;
+  // Connections the handshake pool has yet to hand over to a loop.
+  private final Set<SocketChannel> handshaking = ConcurrentHashMap.newKeySet();
+  private final EngineEventLoop.Handler echoHandler = new EchoHandler();
+  private ExecutorService executor;
+
+  EngineEventLoopServer(SSLContext context, EndpointOptions options, boolean useAlpn) {
+    try {
+      this.context = context;
+      this.options = options;
+      this.useAlpn = useAlpn;
+      serverChannel = ServerSocketChannel.open();
+      loops = new EngineEventLoop[options.eventLoopThreads()];
+      handshakePool = options.handshakePool();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Starts the event loops and begins accepting connections. Unlike the single-connection
+   * servers, the returned future completes as soon as the server is listening.
+   */
+  @Override
+  public CompletableFuture<Void> start() {
+    try {
+      serverChannel.socket().bind(new InetSocketAddress("localhost", 0), ACCEPT_BACKLOG);
+
+      executor = Executors.newFixedThreadPool(loops.length + 1);
+      for (int i = 0; i < loops.length; i++) {
+        loops[i] = new EngineEventLoop();
+        executor.submit(loops[i]);
+      }
+      executor.submit(new AcceptTask());
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void stop() {
+    try {
+      serverChannel.close();
+      for (SocketChannel channel : handshaking) {
+        channel.close();
+      }
+
+      for (EngineEventLoop loop : loops) {
+        if (loop != null) {
+          loop.shutdown();
+        }
+      }
+
+      if (executor != null) {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        executor = null;
+      }
+    } catch (IOException | InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public int port() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Returns the number of connections currently open across all loops.
+   */
+  int connectionCount() {
+    int count = 0;
+    for (EngineEventLoop loop : loops) {
+      count += loop.connectionCount();
+    }
+    return count;
+  }
+
+  private final class AcceptTask implements Runnable {
+    @Override
+    public void run() {
+      int next = 0;
+      try {
+        while (true) {
+          SocketChannel channel = serverChannel.accept();
+          EngineWrapper engineWrapper =
+              new EngineWrapper(EngineServer.newServerEngine(context, options, useAlpn), options);
+          EngineEventLoop loop = loops[next];
+          next = (next + 1) % loops.length;
+          if (handshakePool == null) {
+            try {
+              loop.register(channel, engineWrapper, echoHandler);
+            } catch (IllegalStateException e) {
+              // The server is being stopped.
+              channel.close();
+              return;
+            }
+          } else {
+            handshaking.add(channel);
+            if (!handshakePool.submit(channel,
+                deadline -> handshake(channel, engineWrapper, loop, deadline))) {
+              handshaking.remove(channel);
+              channel.close();
+            }
+          }
+        }
+      } catch (ClosedChannelException e) {
+        // The server was stopped.
+      } catch (Throwable e) {
+        e.printStackTrace();
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Runs on the handshake pool. The accepted channel is still in blocking mode, so the
+     * handshake needs no selector; the loop makes it non-blocking when it adopts it. Blocking
+     * channels have no read timeout, so a client that stalls is cut off by the pool, which closes
+     * the channel once its handshake timeout has passed.
+     *
+     * @return {@code false} if the handshake failed.
+     */
+    private boolean handshake(SocketChannel channel, EngineWrapper engineWrapper,
+        EngineEventLoop loop, HandshakePool.Deadline deadline) {
+      try {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        engineWrapper.doHandshake(channel);
+        if (!deadline.disarm()) {
+          throw new IOException("Handshake timed out");
+        }
+        handshaking.remove(channel);
+        loop.adopt(channel, engineWrapper, echoHandler);
+        return true;
+      } catch (IOException | RuntimeException e) {
+        handshaking.remove(channel);
+        // The client went away, or the server was stopped, during the handshake.
+        try {
+          channel.close();
+        } catch (IOException ignored) {
+          // Ignored.
+        }
+        engineWrapper.releaseBuffers();
+        return false;
+      }
+    }
+  }
+
+  private final class EchoHandler implements EngineEventLoop.Handler {
+    @Override
+    public void handshakeComplete(EngineEventLoop.Connection connection) {
+      if (useAlpn) {
+        assertEquals(ALPN_PROTOCOL,
+            Alpn.selectedProtocol(connection.engineWrapper().engine()));
+      }
+    }
+
+    @Override
+    public void messagesReceived(EngineEventLoop.Connection connection, int count)
+        throws IOException {
+      connection.sendMessages(count);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Server(type=%s, provider=%s, useAlpn=%b, loops=%d)", "EngineEventLoop",
+        context.getProvider() instanceof OpenSSLProvider ? "Conscrypt" : "JDK", useAlpn,
+        loops.length);
+  }
+}
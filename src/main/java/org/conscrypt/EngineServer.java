@@ -3,64 +3,55 @@ package org.conscrypt;
 import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
 import static org.junit.Assert.assertEquals;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.InetSocketAddress;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiFunction;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
 final class EngineServer implements Server {
-  private final ServerSocketChannel serverChannel;
+  private final Transport transport;
   private final EngineWrapper engineWrapper;
   private final boolean useAlpn;
-  private SocketChannel channel;
+  private Transport.Listener listener;
+  private ByteChannel channel;
   private ExecutorService executor;
+  private volatile boolean stopped;
 
-  EngineServer(SSLContext context, boolean useAlpn) {
-    try {
-      this.useAlpn = useAlpn;
-      serverChannel = ServerSocketChannel.open();
-
-      SSLEngine engine = context.createSSLEngine();
-      engine.setUseClientMode(false);
-      if (useAlpn) {
-        if (!Conscrypt.isConscrypt(engine)) {
-          throw new IllegalArgumentException("ALPN is only supported for Conscrypt sockets");
-        }
-        BiFunction<SSLEngine, List<String>, String> selector =
-            (SSLEngine sslEngine, List<String> strings) -> {
-              // Just prove that we can get the current cipher without issue.
-              String cipherSuite = sslEngine.getSession().getCipherSuite();
-              System.err.println("Cipher suite=" + cipherSuite);
-              return TestUtils.ALPN_PROTOCOL;
-            };
-        Method method = engine.getClass().getMethod(
-            "setHandshakeApplicationProtocolSelector", BiFunction.class);
-        method.invoke(engine, selector);
-      }
+  EngineServer(
+      SSLContext context, EndpointOptions options, boolean useAlpn, Transport transport) {
+    this.transport = transport;
+    this.useAlpn = useAlpn;
 
-      engineWrapper = new EngineWrapper(engine);
-    } catch (IOException | InvocationTargetException | IllegalAccessException
-        | NoSuchMethodException e) {
-      throw new RuntimeException(e);
+    engineWrapper = new EngineWrapper(newServerEngine(context, options, useAlpn), options);
+  }
+
+  static SSLEngine newServerEngine(SSLContext context, EndpointOptions options, boolean useAlpn) {
+    SSLEngine engine = context.createSSLEngine();
+    engine.setUseClientMode(false);
+    options.configure(engine);
+    if (useAlpn) {
+      Alpn.setSelector(engine, (SSLEngine sslEngine, List<String> strings) -> {
+        // Just prove that we can get the current cipher without issue.
+        String cipherSuite = sslEngine.getSession().getCipherSuite();
+        System.err.println("Cipher suite=" + cipherSuite);
+        return TestUtils.ALPN_PROTOCOL;
+      });
     }
+    return engine;
   }
 
   @Override
-  public Future<?> start() {
+  public CompletableFuture<Void> start() {
     try {
       executor = Executors.newSingleThreadExecutor();
-      serverChannel.socket().bind(new InetSocketAddress("localhost", 0));
-      return executor.submit(new AcceptTask());
+      listener = transport.listen();
+      return CompletableFuture.runAsync(new AcceptTask(), executor);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -69,12 +60,23 @@ final class EngineServer implements Server {
   @Override
   public void stop() {
     try {
+      stopped = true;
       if (channel != null) {
+        // The echo task may still be reading, so only send close_notify rather than wait for the
+        // client's.
+        try {
+          engineWrapper.closeOutbound(channel);
+        } catch (IOException e) {
+          // The client is already gone.
+        }
         channel.close();
         channel = null;
       }
+      engineWrapper.close();
 
-      serverChannel.close();
+      if (listener != null) {
+        listener.close();
+      }
 
       if (executor != null) {
         executor.shutdown();
@@ -88,19 +90,18 @@ final class EngineServer implements Server {
 
   @Override
   public int port() {
-    return serverChannel.socket().getLocalPort();
+    return listener.port();
   }
 
   private final class AcceptTask implements Runnable {
     @Override
     public void run() {
       try {
-        channel = serverChannel.accept();
-        channel.configureBlocking(false);
+        channel = listener.accept();
 
         engineWrapper.doHandshake(channel);
         if (useAlpn) {
-          assertEquals(ALPN_PROTOCOL, Conscrypt.getAlpnSelectedProtocol(engineWrapper.engine()));
+          assertEquals(ALPN_PROTOCOL, Alpn.selectedProtocol(engineWrapper.engine()));
         }
 
         executor.submit(new EchoTask());
@@ -114,11 +115,31 @@ final class EngineServer implements Server {
     @Override
     public void run() {
       try {
-        engineWrapper.readMessage(channel);
-        engineWrapper.sendMessage(channel);
+        // Echo messages until the client goes away or the server is stopped.
+        while (true) {
+          for (int messages = engineWrapper.readMessages(channel, Integer.MAX_VALUE);
+              messages > 0; messages--) {
+            if (!engineWrapper.sendMessage(channel)) {
+              // Over the high watermark, stop producing until the backlog drains.
+              engineWrapper.awaitWritable(channel);
+            }
+          }
+          engineWrapper.awaitFlushed(channel);
+        }
+      } catch (EOFException e) {
+        // The client closed the connection. Answer its close_notify, if it sent one.
+        try {
+          engineWrapper.shutdown(channel);
+        } catch (IOException ignored) {
+          // The client didn't wait for it.
+        }
       } catch (Throwable e) {
-        e.printStackTrace();
-        throw new RuntimeException(e);
+        if (!stopped) {
+          e.printStackTrace();
+          throw new RuntimeException(e);
+        }
+      } finally {
+        engineWrapper.releaseBuffers();
       }
     }
   }
@@ -4,35 +4,322 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import org.conscrypt.PhaseHistograms.Phase;
 
 final class EngineWrapper {
   private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+  // The most buffers handed to a single gathering write.
+  private static final int MAX_GATHER = 64;
+  // How long shutdown waits for the peer's close_notify.
+  static final long CLOSE_TIMEOUT_MILLIS = 1000;
 
   private final SSLEngine engine;
-  private final ByteBuffer inboundPacketBuffer;
-  private final ByteBuffer inboundAppBuffer;
-  private final ByteBuffer outboundPacketBuffer;
+  private final EndpointOptions options;
+  private final BufferStrategy bufferStrategy;
+  private final BufferPool bufferPool;
+  private final PhaseHistograms phases;
+  private final int packetBufferSize;
+  // Grows if the engine ever needs more room for a record's plaintext.
+  private int applicationBufferSize;
+  // Dedicated buffers, or null when borrowing from the pool. In pooled mode, the inbound packet
+  // buffer is only held on to while it contains a partial record.
+  private ByteBuffer inboundPacketBuffer;
+  private ByteBuffer inboundAppBuffer;
+  private ByteBuffer outboundPacketBuffer;
+  // The message every send wraps, rewound each time.
+  private final ByteBuffer message;
+  // Single-element arrays for the engine's gathering and scattering calls, so that the
+  // single-buffer variants don't allocate one per call.
+  private final ByteBuffer[] wrapSources = new ByteBuffer[1];
+  private final ByteBuffer[] unwrapDestinations = new ByteBuffer[1];
+  private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+  private final FlushPolicy flushPolicy;
+  // Records wrapped by queueMessages that have yet to be written, after everything in
+  // pendingOutput. Allocated on first use.
+  private ByteBuffer batch;
+  // Duplicates of the message for queueMessages to wrap, and the array for gathering writes.
+  private ByteBuffer[] batchMessages = new ByteBuffer[0];
+  private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+  private final Waiter readWaiter = new Waiter();
+  private final Waiter writeWaiter = new Waiter();
+  private int pendingOutputBytes;
+  private boolean writable = true;
+  private boolean needsInput = true;
+  private int partialMessageBytes;
+  private int unreadMessages;
+  private volatile boolean delegatedTasksInFlight;
+  private Runnable delegatedTasksListener;
+  private boolean handshaking;
+  private long handshakeStartNanos;
 
-  EngineWrapper(SSLEngine engine) {
+  EngineWrapper(SSLEngine engine, EndpointOptions options) {
     this.engine = engine;
-    inboundPacketBuffer =
-        ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
-    inboundAppBuffer =
-        ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
-    outboundPacketBuffer =
-        ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+    this.options = options;
+    bufferStrategy = options.bufferStrategy();
+    bufferPool = options.bufferPool();
+    phases = options.phaseHistograms();
+    flushPolicy =
+        options.flushPolicy() != null ? options.flushPolicy() : FlushPolicy.IMMEDIATE;
+    packetBufferSize = engine.getSession().getPacketBufferSize();
+    applicationBufferSize = engine.getSession().getApplicationBufferSize();
+    if (bufferPool == null) {
+      boolean directPackets = bufferStrategy.directPackets();
+      inboundPacketBuffer = BufferStrategy.allocate(packetBufferSize, directPackets);
+      inboundAppBuffer = BufferStrategy.allocate(
+          applicationBufferSize, bufferStrategy.directApplicationBuffer());
+      outboundPacketBuffer = BufferStrategy.allocate(packetBufferSize, directPackets);
+    }
+    message = bufferStrategy.directMessages()
+        ? TestUtils.newDirectMessage(options.payload(), options.messageLength())
+        : TestUtils.newMessage(options.payload(), options.messageLength());
   }
 
   SSLEngine engine() {
     return engine;
   }
 
+  EndpointOptions options() {
+    return options;
+  }
+
+  /**
+   * Releases the selectors used to wait for channel readiness and closes the engine in both
+   * directions, without any I/O. Wakes up any thread that is currently blocked waiting for the
+   * channel. Closing the engine lets Conscrypt free its native state right away, rather than
+   * whenever the engine is finalized.
+   */
+  void close() throws IOException {
+    readWaiter.close();
+    writeWaiter.close();
+    engine.closeOutbound();
+    if (!engine.isInboundDone()) {
+      try {
+        engine.closeInbound();
+      } catch (SSLException e) {
+        // The peer never sent close_notify. The JDK engine complains, but is closed all the same.
+      }
+    }
+  }
+
+  /**
+   * Starts closing the session without blocking: wraps close_notify behind any pending output
+   * and writes as much as the channel accepts. Like {@link #sendMessage}, may be called while
+   * another thread reads.
+   *
+   * @return {@code true} if close_notify has been written in full.
+   */
+  boolean closeOutbound(ByteChannel channel) throws IOException {
+    synchronized (pendingOutput) {
+      engine.closeOutbound();
+      while (!engine.isOutboundDone()) {
+        // Nothing is produced if the handshake never got far enough to send an alert.
+        if (wrap(EMPTY_BUFFER, channel).bytesProduced() == 0) {
+          break;
+        }
+      }
+      return flush(channel);
+    }
+  }
+
+  /**
+   * Closes the session cleanly: sends close_notify, then reads until the peer's close_notify or
+   * the end of the stream, discarding any application data still in flight, for up to
+   * {@link #CLOSE_TIMEOUT_MILLIS}. Returns straight away if the peer has already sent its
+   * close_notify. Must be called from the thread that reads from the channel; the caller still
+   * closes the channel and the wrapper afterwards.
+   */
+  void shutdown(ByteChannel channel) throws IOException {
+    closeOutbound(channel);
+    awaitFlushed(channel);
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+    while (!engine.isInboundDone()) {
+      long remainingNanos = deadline - System.nanoTime();
+      if (remainingNanos <= 0) {
+        break;
+      }
+      if (engine.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+        runDelegatedTasks();
+      }
+      if (needsInput) {
+        int bytesRead = read(channel);
+        if (bytesRead == -1) {
+          // The peer closed the connection without answering.
+          break;
+        }
+        if (bytesRead == 0) {
+          releaseInboundPacketBufferIfEmpty();
+          readWaiter.await(channel, SelectionKey.OP_READ,
+              Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+          continue;
+        }
+      }
+      if (unwrapBuffered().getStatus() == Status.CLOSED) {
+        break;
+      }
+    }
+    releaseBuffers();
+  }
+
+  /**
+   * Returns the buffer holding a partially received record, if any, to the pool. Must be called
+   * from the thread that reads from the channel, once it has stopped doing so.
+   */
+  void releaseBuffers() {
+    if (bufferPool != null && inboundPacketBuffer != null) {
+      bufferPool.release(inboundPacketBuffer);
+      inboundPacketBuffer = null;
+    }
+  }
+
+  /**
+   * Returns the buffer that {@link #processInput} unwraps from, for callers that read into it
+   * themselves, completion-style. Their channel then reports the bytes from its next
+   * {@link ByteChannel#read} instead of reading them again.
+   */
+  ByteBuffer inboundPacketBuffer() {
+    return acquireInboundPacketBuffer();
+  }
+
+  /**
+   * Indicates whether the pending output is below the configured high watermark. Once this
+   * returns {@code false}, it stays that way until the pending output has been drained below the
+   * low watermark.
+   */
+  boolean isWritable() {
+    synchronized (pendingOutput) {
+      return writable;
+    }
+  }
+
+  boolean hasPendingOutput() {
+    synchronized (pendingOutput) {
+      return !pendingOutput.isEmpty() || hasBatchedOutput();
+    }
+  }
+
+  /**
+   * Indicates whether {@link #queueMessages} has batched up records that have yet to be written.
+   */
+  boolean hasBatchedOutput() {
+    synchronized (pendingOutput) {
+      return batch != null && batch.position() > 0;
+    }
+  }
+
+  /**
+   * Writes as much pending output, including any batched records, as the channel accepts without
+   * blocking. A channel that supports gathering writes gets all of it in as few writes as
+   * possible.
+   *
+   * @return {@code true} if all pending output has been written.
+   */
+  boolean flush(ByteChannel channel) throws IOException {
+    synchronized (pendingOutput) {
+      if (hasBatchedOutput() && channel instanceof GatheringByteChannel) {
+        flushGathering((GatheringByteChannel) channel);
+      } else {
+        ByteBuffer buffer;
+        while ((buffer = pendingOutput.peek()) != null) {
+          pendingOutputBytes -= write(channel, buffer);
+          if (buffer.hasRemaining()) {
+            break;
+          }
+          pendingOutput.poll();
+        }
+        if (pendingOutput.isEmpty() && hasBatchedOutput()) {
+          batch.flip();
+          try {
+            pendingOutputBytes -= write(channel, batch);
+          } finally {
+            batch.compact();
+          }
+        }
+      }
+      if (!writable && pendingOutputBytes <= options.lowWaterMark()) {
+        writable = true;
+      }
+      return pendingOutput.isEmpty() && !hasBatchedOutput();
+    }
+  }
+
+  /**
+   * Writes the pending output followed by the batch with as few gathering writes as possible,
+   * stopping as soon as the channel doesn't take everything it is offered.
+   */
+  private void flushGathering(GatheringByteChannel channel) throws IOException {
+    while (true) {
+      int count = 0;
+      for (ByteBuffer buffer : pendingOutput) {
+        if (count == MAX_GATHER - 1) {
+          break;
+        }
+        gatherBuffers[count++] = buffer;
+      }
+      // The batch can only go out once everything queued before it is in the same write.
+      boolean includesBatch = count == pendingOutput.size();
+      if (includesBatch) {
+        gatherBuffers[count++] = (ByteBuffer) batch.flip();
+      }
+      boolean drained;
+      try {
+        long start = startTime();
+        pendingOutputBytes -= channel.write(gatherBuffers, 0, count);
+        record(Phase.CHANNEL_WRITE, start);
+        drained = !gatherBuffers[count - 1].hasRemaining();
+      } finally {
+        if (includesBatch) {
+          batch.compact();
+        }
+        Arrays.fill(gatherBuffers, 0, count, null);
+      }
+      while (!pendingOutput.isEmpty() && !pendingOutput.peek().hasRemaining()) {
+        pendingOutput.poll();
+      }
+      if (!drained || includesBatch) {
+        // Either the channel is full, and the caller waits for OP_WRITE before flushing again,
+        // or everything has been written.
+        return;
+      }
+    }
+  }
+
+  /**
+   * Blocks until the pending output has been drained below the low watermark.
+   */
+  void awaitWritable(ByteChannel channel) throws IOException {
+    while (true) {
+      flush(channel);
+      if (isWritable()) {
+        return;
+      }
+      writeWaiter.await(channel, SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Blocks until all pending output has been written to the channel.
+   */
+  void awaitFlushed(ByteChannel channel) throws IOException {
+    while (!flush(channel)) {
+      writeWaiter.await(channel, SelectionKey.OP_WRITE);
+    }
+  }
+
   void doHandshake(ByteChannel channel) throws IOException {
-    engine.beginHandshake();
+    beginHandshake();
 
     HandshakeStatus status = engine.getHandshakeStatus();
     boolean done = false;
@@ -57,30 +344,414 @@ final class EngineWrapper {
         }
       }
     }
+
+    releaseInboundPacketBufferIfEmpty();
+
+    // Make sure the peer has our last flight before reporting the handshake as complete.
+    awaitFlushed(channel);
+    finishHandshake();
   }
 
-  void sendMessage(ByteChannel channel) throws IOException {
-    SSLEngineResult result = wrap(TestUtils.newMessage(), channel);
-    if (result.getStatus() != Status.OK) {
-      throw new RuntimeException("Wrap failed. Status: " + result.getStatus());
-    }
+  /**
+   * Starts a handshake that is driven forward by subsequent calls to {@link #processInput}
+   * instead of blocking like {@link #doHandshake}.
+   */
+  void beginHandshake() throws IOException {
+    handshaking = true;
+    handshakeStartNanos = startTime();
+    engine.beginHandshake();
   }
 
-  void readMessage(ByteChannel channel) throws IOException {
-    int totalProduced = 0;
+  /**
+   * Sets the callback to invoke, from a worker thread, when delegated tasks that
+   * {@link #processInput} handed to the configured {@link DelegatedTaskRunner} have finished.
+   * The handshake doesn't make progress until {@link #processInput} is called again.
+   */
+  void onDelegatedTasksComplete(Runnable listener) {
+    delegatedTasksListener = listener;
+  }
+
+  boolean hasDelegatedTasksInFlight() {
+    return delegatedTasksInFlight;
+  }
+
+  boolean isHandshaking() {
+    return engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING;
+  }
+
+  /**
+   * Reads and unwraps everything the channel has to offer without blocking, advancing the
+   * handshake if one is in progress.
+   *
+   * @return the number of complete messages received.
+   */
+  int processInput(ByteChannel channel) throws IOException {
+    int messages = 0;
     while (true) {
-      SSLEngineResult result = unwrap(channel);
+      HandshakeStatus status = engine.getHandshakeStatus();
+      switch (status) {
+        case NEED_WRAP:
+          wrap(EMPTY_BUFFER, channel);
+          continue;
+        case NEED_TASK:
+          DelegatedTaskRunner runner = options.delegatedTaskRunner();
+          if (runner == null) {
+            runDelegatedTasks();
+            continue;
+          }
+          if (!delegatedTasksInFlight) {
+            delegatedTasksInFlight = true;
+            long start = startTime();
+            runner.runAsync(engine, () -> {
+              record(Phase.NEED_TASK, start);
+              delegatedTasksInFlight = false;
+              delegatedTasksListener.run();
+            });
+          }
+          return messages;
+        case NOT_HANDSHAKING:
+          if (handshaking) {
+            finishHandshake();
+          }
+          break;
+        default:
+          break;
+      }
+
+      if (needsInput) {
+        int bytesRead = read(channel);
+        if (bytesRead == -1) {
+          throw new EOFException();
+        }
+        if (bytesRead == 0) {
+          releaseInboundPacketBufferIfEmpty();
+          return messages;
+        }
+      }
+
+      SSLEngineResult result = unwrapBuffered();
       switch (result.getStatus()) {
         case OK:
-          totalProduced += result.bytesProduced();
-          if (totalProduced == TestUtils.MESSAGE_LENGTH) {
-            return;
-          }
-          // Read more data.
+          partialMessageBytes += result.bytesProduced();
+          messages += partialMessageBytes / options.messageLength();
+          partialMessageBytes %= options.messageLength();
           break;
         case BUFFER_UNDERFLOW:
           // Read more data.
           break;
+        case CLOSED:
+          throw new EOFException();
+        default:
+          throw new RuntimeException("Failed reading message: " + result);
+      }
+    }
+  }
+
+  /**
+   * Wraps and writes a single message. Any part of it that the channel does not accept right
+   * away is queued and written by a later {@link #flush}. If the caller ignored a previous
+   * request to stop producing, this blocks until the pending output drops below the low
+   * watermark.
+   *
+   * @return {@code false} if the pending output has reached the high watermark and the caller
+   *     should stop sending until {@link #isWritable()} returns {@code true} again.
+   */
+  boolean sendMessage(ByteChannel channel) throws IOException {
+    if (!isWritable()) {
+      awaitWritable(channel);
+    }
+    return queueMessage(channel);
+  }
+
+  /**
+   * Like {@link #sendMessage} but never blocks, even if the pending output is already above the
+   * high watermark.
+   */
+  boolean queueMessage(ByteChannel channel) throws IOException {
+    synchronized (pendingOutput) {
+      message.rewind();
+      do {
+        // Each wrap produces at most one TLS record.
+        SSLEngineResult result = wrap(message, channel);
+        if (result.getStatus() != Status.OK) {
+          throw new RuntimeException("Wrap failed. Status: " + result.getStatus());
+        }
+      } while (message.hasRemaining());
+      return writable;
+    }
+  }
+
+  void readMessage(ByteChannel channel) throws IOException {
+    readMessages(channel, 1);
+  }
+
+  /**
+   * Blocks until at least one message is complete and returns how many are, up to {@code max}.
+   * Completed messages beyond that are returned by later calls without reading again.
+   */
+  int readMessages(ByteChannel channel, int max) throws IOException {
+    while (unreadMessages == 0) {
+      ByteBuffer appBuffer = borrow(
+          inboundAppBuffer, applicationBufferSize, bufferStrategy.directApplicationBuffer());
+      try {
+        // Just clear the app buffer - we don't really use it.
+        appBuffer.clear();
+        unwrapDestinations[0] = appBuffer;
+        // A peer that batches its messages may put several in one record.
+        partialMessageBytes += readRecords(channel, unwrapDestinations);
+        keepApplicationBuffer(unwrapDestinations[0]);
+      } finally {
+        unwrapDestinations[0] = null;
+        giveBack(appBuffer);
+      }
+      unreadMessages += partialMessageBytes / options.messageLength();
+      partialMessageBytes %= options.messageLength();
+    }
+    int messages = Math.min(unreadMessages, max);
+    unreadMessages -= messages;
+    return messages;
+  }
+
+  /**
+   * Unwraps every complete record that is buffered, scattering the plaintext into the given
+   * buffers, and only reads from the channel if there is none. Blocks until at least one record
+   * with application data has been unwrapped. Stops early once the buffers are full; the records
+   * that didn't fit stay buffered for the next call.
+   *
+   * <p>If the buffers have no room for the first record, the last of them is replaced with a
+   * larger copy rather than failing. Callers must therefore go through the array afterwards.
+   *
+   * @return the number of plaintext bytes produced.
+   */
+  int readRecords(ByteChannel channel, ByteBuffer[] dsts) throws IOException {
+    int produced = 0;
+    int offset = 0;
+    try {
+      while (true) {
+        while (offset < dsts.length - 1 && !dsts[offset].hasRemaining()) {
+          offset++;
+        }
+        if (needsInput) {
+          if (produced > 0) {
+            return produced;
+          }
+          readForUnwrap(channel);
+        }
+
+        SSLEngineResult result = unwrapBuffered(dsts, offset, dsts.length - offset);
+        switch (result.getStatus()) {
+          case OK:
+            produced += result.bytesProduced();
+            break;
+          case BUFFER_UNDERFLOW:
+            // Read more data, unless there's something to hand over.
+            break;
+          case BUFFER_OVERFLOW:
+            if (produced > 0) {
+              return produced;
+            }
+            growLast(dsts);
+            break;
+          case CLOSED:
+            if (produced > 0) {
+              return produced;
+            }
+            throw new EOFException();
+          default:
+            throw new RuntimeException("Failed reading message: " + result);
+        }
+      }
+    } finally {
+      releaseInboundPacketBufferIfEmpty();
+    }
+  }
+
+  /**
+   * Replaces the last of the given buffers with one that has room for at least one more record,
+   * keeping what it holds.
+   */
+  private void growLast(ByteBuffer[] dsts) {
+    int last = dsts.length - 1;
+    ByteBuffer old = dsts[last];
+    int capacity = Math.max(2 * old.capacity(),
+        old.position() + Math.max(applicationBufferSize,
+            engine.getSession().getApplicationBufferSize()));
+    ByteBuffer grown = BufferStrategy.allocate(capacity, old.isDirect());
+    old.flip();
+    grown.put(old);
+    dsts[last] = grown;
+  }
+
+  /**
+   * Adopts an application buffer that {@link #readRecords} or {@link #unwrapBuffered()} had to
+   * grow, so that the engine doesn't overflow the same way again.
+   */
+  private void keepApplicationBuffer(ByteBuffer appBuffer) {
+    if (appBuffer.capacity() <= applicationBufferSize) {
+      return;
+    }
+    applicationBufferSize = appBuffer.capacity();
+    if (bufferPool == null) {
+      inboundAppBuffer = appBuffer;
+    }
+  }
+
+  /**
+   * Wraps {@code count} copies of the message into the batch, coalescing as many as fit into
+   * each record, and then writes the batch as the {@link FlushPolicy} says. Records that the
+   * channel doesn't take count as pending output. Never blocks.
+   *
+   * @return {@code false} if the pending output has reached the high watermark, like
+   *     {@link #sendMessage}.
+   */
+  boolean queueMessages(ByteChannel channel, int count) throws IOException {
+    synchronized (pendingOutput) {
+      if (batchMessages.length < count) {
+        ByteBuffer[] grown =
+            Arrays.copyOf(batchMessages, Math.max(count, 2 * batchMessages.length));
+        for (int i = batchMessages.length; i < grown.length; i++) {
+          grown[i] = message.duplicate();
+        }
+        batchMessages = grown;
+      }
+      for (int i = 0; i < count; i++) {
+        batchMessages[i].rewind();
+      }
+      return queueMessages(channel, batchMessages, 0, count);
+    }
+  }
+
+  /**
+   * Like {@link #queueMessages(ByteChannel, int)}, but wraps whatever remains in the given
+   * buffers.
+   */
+  boolean queueMessages(ByteChannel channel, ByteBuffer[] messages, int offset, int length)
+      throws IOException {
+    synchronized (pendingOutput) {
+      allocateBatch();
+      int end = offset + length;
+      while (true) {
+        while (offset < end && !messages[offset].hasRemaining()) {
+          offset++;
+        }
+        if (offset == end) {
+          break;
+        }
+        if (batch.remaining() < packetBufferSize) {
+          // No room for another record, whatever the policy.
+          flush(channel);
+          if (batch.remaining() < packetBufferSize) {
+            spillBatch();
+          }
+        }
+
+        long start = startTime();
+        SSLEngineResult result = engine.wrap(messages, offset, end - offset, batch);
+        record(Phase.WRAP, start);
+        if (result.getStatus() != Status.OK) {
+          throw new RuntimeException("Wrap failed. Status: " + result.getStatus());
+        }
+        pendingOutputBytes += result.bytesProduced();
+      }
+      if (pendingOutputBytes >= options.highWaterMark()) {
+        writable = false;
+      }
+
+      if (flushPolicy == FlushPolicy.IMMEDIATE
+          || (flushPolicy == FlushPolicy.SIZE_THRESHOLD
+              && batch.position() >= options.flushThreshold())) {
+        flush(channel);
+      }
+      return writable;
+    }
+  }
+
+  private void allocateBatch() {
+    if (batch == null) {
+      batch = BufferStrategy.allocate(
+          Math.max(4 * packetBufferSize, options.flushThreshold() + packetBufferSize),
+          bufferStrategy.directPackets());
+    }
+  }
+
+  /**
+   * Moves whatever the channel didn't take from the batch to the pending output, to make room.
+   */
+  private void spillBatch() {
+    batch.flip();
+    ByteBuffer pending = ByteBuffer.allocate(batch.remaining());
+    pending.put(batch).flip();
+    pendingOutput.add(pending);
+    batch.clear();
+  }
+
+  /**
+   * Wraps and writes everything that remains in the given buffers, such as the windows of a
+   * mapped file, handing them to the engine as they are. A record may span buffers. Records are
+   * wrapped into the batch until it is full and then written together, so that a large transfer
+   * takes one write per batch rather than one per record. Blocks until all of it has been
+   * written.
+   */
+  void sendBuffers(ByteChannel channel, ByteBuffer[] sources) throws IOException {
+    int offset = 0;
+    while (true) {
+      while (offset < sources.length && !sources[offset].hasRemaining()) {
+        offset++;
+      }
+      if (offset == sources.length) {
+        break;
+      }
+      synchronized (pendingOutput) {
+        allocateBatch();
+        while (offset < sources.length && batch.remaining() >= packetBufferSize) {
+          long start = startTime();
+          SSLEngineResult result =
+              engine.wrap(sources, offset, sources.length - offset, batch);
+          record(Phase.WRAP, start);
+          if (result.getStatus() != Status.OK) {
+            throw new RuntimeException("Wrap failed. Status: " + result.getStatus());
+          }
+          pendingOutputBytes += result.bytesProduced();
+          while (offset < sources.length && !sources[offset].hasRemaining()) {
+            offset++;
+          }
+        }
+      }
+      awaitFlushed(channel);
+    }
+  }
+
+  /**
+   * Reads and unwraps into the given buffers, such as the windows of a mapped file, until they
+   * are full. Records are unwrapped straight into them, except where the engine won't unwrap a
+   * record into the little space left at the end; such a record is unwrapped into the
+   * application buffer and copied.
+   *
+   * @return the number of bytes that had to be copied.
+   */
+  long receiveInto(ByteChannel channel, ByteBuffer[] destinations) throws IOException {
+    long bytesCopied = 0;
+    int offset = 0;
+    while (true) {
+      while (offset < destinations.length && !destinations[offset].hasRemaining()) {
+        offset++;
+      }
+      if (offset == destinations.length) {
+        releaseInboundPacketBufferIfEmpty();
+        return bytesCopied;
+      }
+      readForUnwrap(channel);
+      SSLEngineResult result =
+          unwrapBuffered(destinations, offset, destinations.length - offset);
+      switch (result.getStatus()) {
+        case OK:
+        case BUFFER_UNDERFLOW:
+          break;
+        case BUFFER_OVERFLOW:
+          bytesCopied += unwrapAndCopy(destinations, offset);
+          break;
+        case CLOSED:
+          throw new EOFException();
         default:
           throw new RuntimeException("Failed reading message: " + result);
       }
@@ -88,58 +759,295 @@ final class EngineWrapper {
   }
 
   private SSLEngineResult wrap(ByteBuffer src, ByteChannel channel) throws IOException {
-    outboundPacketBuffer.clear();
+    synchronized (pendingOutput) {
+      wrapSources[0] = src;
+      try {
+        return wrap(wrapSources, 0, 1, channel);
+      } finally {
+        wrapSources[0] = null;
+      }
+    }
+  }
 
-    // Check if the engine has bytes to wrap.
-    SSLEngineResult result = engine.wrap(src, outboundPacketBuffer);
+  private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteChannel channel)
+      throws IOException {
+    synchronized (pendingOutput) {
+      ByteBuffer packetBuffer =
+          borrow(outboundPacketBuffer, packetBufferSize, bufferStrategy.directPackets());
+      try {
+        packetBuffer.clear();
 
-    // Write any wrapped bytes to the socket.
-    outboundPacketBuffer.flip();
+        // Check if the engine has bytes to wrap.
+        long start = startTime();
+        SSLEngineResult result = engine.wrap(srcs, offset, length, packetBuffer);
+        record(srcs[offset] == EMPTY_BUFFER ? Phase.NEED_WRAP : Phase.WRAP, start);
 
-    do {
-      channel.write(outboundPacketBuffer);
-    } while (outboundPacketBuffer.hasRemaining());
+        // Write any wrapped bytes to the socket, preserving the order of anything still pending.
+        packetBuffer.flip();
+        if (flush(channel)) {
+          write(channel, packetBuffer);
+        } else if (hasBatchedOutput()) {
+          // Keep the batch ahead of this record.
+          spillBatch();
+        }
 
-    return result;
+        // Queue whatever the socket didn't take.
+        int remaining = packetBuffer.remaining();
+        if (remaining > 0) {
+          ByteBuffer pending = ByteBuffer.allocate(remaining);
+          pending.put(packetBuffer).flip();
+          pendingOutput.add(pending);
+          pendingOutputBytes += remaining;
+          if (pendingOutputBytes >= options.highWaterMark()) {
+            writable = false;
+          }
+        }
+        return result;
+      } finally {
+        giveBack(packetBuffer);
+      }
+    }
   }
 
   private SSLEngineResult unwrap(ByteChannel channel) throws IOException {
+    readForUnwrap(channel);
+    return unwrapBuffered();
+  }
+
+  /**
+   * Reads whatever the channel has available, waiting for the peer if nothing that is buffered
+   * can be unwrapped.
+   */
+  private void readForUnwrap(ByteChannel channel) throws IOException {
+    if (!needsInput) {
+      // A complete record is already buffered, don't spend a read on it.
+      return;
+    }
     // Unwrap any available bytes from the socket.
-    int bytesRead = channel.read(inboundPacketBuffer);
+    int bytesRead = read(channel);
     //log("Read bytes: " + bytesRead);
+    if (bytesRead == 0) {
+      if (options.pollingReads()) {
+        flush(channel);
+        // Sleep for a bit to allow the socket to buffer.
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException ignore) {
+          // Ignored.
+        }
+      } else if (needsInput && inboundPacketBuffer.hasRemaining()) {
+        // Nothing buffered can be unwrapped, so wait until the peer sends more.
+        bytesRead = awaitAndRead(channel);
+      }
+    }
     if (bytesRead == -1) {
       throw new EOFException();
     }
+  }
 
-    if (bytesRead == 0) {
-      // Sleep for a bit to allow the socket to buffer.
+  private SSLEngineResult unwrapBuffered() throws IOException {
+    while (true) {
+      ByteBuffer appBuffer = borrow(
+          inboundAppBuffer, applicationBufferSize, bufferStrategy.directApplicationBuffer());
       try {
-        Thread.sleep(10);
-      } catch (InterruptedException ignore) {
-        // Ignored.
+        // Just clear the app buffer - we don't really use it.
+        appBuffer.clear();
+        unwrapDestinations[0] = appBuffer;
+        SSLEngineResult result = unwrapBuffered(unwrapDestinations, 0, 1);
+        if (result.getStatus() != Status.BUFFER_OVERFLOW) {
+          return result;
+        }
+        growLast(unwrapDestinations);
+        keepApplicationBuffer(unwrapDestinations[0]);
+      } finally {
+        unwrapDestinations[0] = null;
+        giveBack(appBuffer);
       }
     }
+  }
 
-    // Just clear the app buffer - we don't really use it.
-    inboundAppBuffer.clear();
-    inboundPacketBuffer.flip();
-    SSLEngineResult result = engine.unwrap(inboundPacketBuffer, inboundAppBuffer);
+  private SSLEngineResult unwrapBuffered(ByteBuffer[] dsts, int offset, int length)
+      throws IOException {
+    ByteBuffer packetBuffer = acquireInboundPacketBuffer();
+    packetBuffer.flip();
+    long start = startTime();
+    SSLEngineResult result = engine.unwrap(packetBuffer, dsts, offset, length);
+    record(handshaking ? Phase.NEED_UNWRAP : Phase.UNWRAP, start);
+    needsInput = result.getStatus() == Status.BUFFER_UNDERFLOW || !packetBuffer.hasRemaining();
 
     // Compact for the next socket read.
-    inboundPacketBuffer.compact();
+    packetBuffer.compact();
     return result;
   }
 
+  /**
+   * Unwraps the next record into the application buffer and copies it into the given buffers.
+   *
+   * @return the number of bytes copied.
+   */
+  private int unwrapAndCopy(ByteBuffer[] dsts, int offset) throws IOException {
+    ByteBuffer appBuffer = borrow(
+        inboundAppBuffer, applicationBufferSize, bufferStrategy.directApplicationBuffer());
+    try {
+      appBuffer.clear();
+      unwrapDestinations[0] = appBuffer;
+      SSLEngineResult result = unwrapBuffered(unwrapDestinations, 0, 1);
+      if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+        // The overflow was judged from the record header; the rest of the record is still to come.
+        return 0;
+      }
+      if (result.getStatus() != Status.OK) {
+        throw new RuntimeException("Failed reading message: " + result);
+      }
+      appBuffer.flip();
+      for (int i = offset; i < dsts.length && appBuffer.hasRemaining(); i++) {
+        ByteBuffer slice = appBuffer.duplicate();
+        slice.limit(slice.position() + Math.min(slice.remaining(), dsts[i].remaining()));
+        dsts[i].put(slice);
+        appBuffer.position(slice.position());
+      }
+      if (appBuffer.hasRemaining()) {
+        throw new RuntimeException("Received more data than expected");
+      }
+      return result.bytesProduced();
+    } finally {
+      unwrapDestinations[0] = null;
+      giveBack(appBuffer);
+    }
+  }
+
+  private int awaitAndRead(ByteChannel channel) throws IOException {
+    int bytesRead;
+    while ((bytesRead = read(channel)) == 0) {
+      releaseInboundPacketBufferIfEmpty();
+      // Keep draining our own output while we wait, the peer may need it before it can reply.
+      int interestOps = flush(channel)
+          ? SelectionKey.OP_READ
+          : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+      readWaiter.await(channel, interestOps);
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Returns the given dedicated buffer or, in pooled mode, borrows one of the given size.
+   */
+  private ByteBuffer borrow(ByteBuffer dedicated, int size, boolean direct) {
+    return bufferPool == null ? dedicated : bufferPool.acquire(size, direct);
+  }
+
+  private void giveBack(ByteBuffer buffer) {
+    if (bufferPool != null) {
+      bufferPool.release(buffer);
+    }
+  }
+
+  private ByteBuffer acquireInboundPacketBuffer() {
+    if (inboundPacketBuffer == null) {
+      inboundPacketBuffer = bufferPool.acquire(packetBufferSize, bufferStrategy.directPackets());
+    }
+    return inboundPacketBuffer;
+  }
+
+  /**
+   * In pooled mode, returns the inbound packet buffer to the pool unless it holds part of a
+   * record that has yet to be unwrapped.
+   */
+  private void releaseInboundPacketBufferIfEmpty() {
+    if (bufferPool != null && inboundPacketBuffer != null && inboundPacketBuffer.position() == 0) {
+      bufferPool.release(inboundPacketBuffer);
+      inboundPacketBuffer = null;
+    }
+  }
+
   /*private void log(String msg) {
     System.err.println((engine.getUseClientMode() ? "[Client] " : "[Server] ") + msg);
   }*/
   private void runDelegatedTasks() {
-    for (;;) {
-      Runnable task = engine.getDelegatedTask();
-      if (task == null) {
-        break;
+    long start = startTime();
+    DelegatedTaskRunner runner = options.delegatedTaskRunner();
+    if (runner != null) {
+      runner.runAndWait(engine);
+    } else {
+      for (;;) {
+        Runnable task = engine.getDelegatedTask();
+        if (task == null) {
+          break;
+        }
+        task.run();
+      }
+    }
+    record(Phase.NEED_TASK, start);
+  }
+
+  private int read(ByteChannel channel) throws IOException {
+    long start = startTime();
+    int bytesRead = channel.read(acquireInboundPacketBuffer());
+    record(Phase.CHANNEL_READ, start);
+    return bytesRead;
+  }
+
+  private int write(ByteChannel channel, ByteBuffer buffer) throws IOException {
+    long start = startTime();
+    int bytesWritten = channel.write(buffer);
+    record(Phase.CHANNEL_WRITE, start);
+    return bytesWritten;
+  }
+
+  private void finishHandshake() {
+    handshaking = false;
+    record(Phase.HANDSHAKE, handshakeStartNanos);
+  }
+
+  /**
+   * Returns the start time of a phase, or 0 without reading the clock if nothing is recorded.
+   */
+  private long startTime() {
+    return phases == null ? 0 : System.nanoTime();
+  }
+
+  private void record(Phase phase, long startNanos) {
+    if (phases != null) {
+      phases.record(phase, System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Blocks the calling thread until a channel is ready for a set of operations. Reads and writes
+   * each get their own selector so that they can wait concurrently from different threads.
+   * {@link MemoryChannel}s aren't selectable and do their own waiting.
+   */
+  private static final class Waiter {
+    private Selector selector;
+    private SelectionKey selectionKey;
+
+    void await(ByteChannel channel, int interestOps) throws IOException {
+      await(channel, interestOps, 0);
+    }
+
+    /**
+     * Like {@link #await(ByteChannel, int)}, but gives up after {@code timeoutMillis}, where zero
+     * means never.
+     */
+    void await(ByteChannel channel, int interestOps, long timeoutMillis) throws IOException {
+      if (channel instanceof MemoryChannel) {
+        ((MemoryChannel) channel).await(interestOps, timeoutMillis);
+        return;
+      }
+      if (selector == null) {
+        selector = Selector.open();
+        selectionKey = ((SelectableChannel) channel).register(selector, interestOps);
+      } else {
+        selectionKey.interestOps(interestOps);
+      }
+      selector.select(timeoutMillis);
+      selector.selectedKeys().clear();
+    }
+
+    void close() throws IOException {
+      if (selector != null) {
+        selector.close();
       }
-      task.run();
     }
   }
 }
@@ -0,0 +1,123 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Measures echo throughput of {@link EngineEventLoopServer} as the number of concurrent
+ * connections grows. Every connection keeps exactly one message in flight, and the client side is
+ * itself driven by event loops so that thousands of connections need only a handful of threads.
+ *
+ * <p>Arguments (all optional): number of server loops, measurement seconds per step, and a
+ * comma-separated list of connection counts.
+ */
+public class EventLoopScalingMain {
+  private static final long WARMUP_SECONDS = 2;
+
+  public static void main(String[] args) {
+    try {
+      int cores = Runtime.getRuntime().availableProcessors();
+      int serverLoops = args.length > 0 ? Integer.parseInt(args[0]) : cores;
+      int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      String[] counts = (args.length > 2 ? args[2] : "1,10,100,1000,2000,5000").split(",");
+
+      Provider[] providers = {new OpenSSLProvider(), Security.getProvider("SunJSSE")};
+      for (Provider provider : providers) {
+        System.err.println("provider=" + provider.getName() + ", serverLoops=" + serverLoops);
+        System.err.println("connections\tmsgs/s");
+        for (String count : counts) {
+          double rate = measure(provider, serverLoops, Integer.parseInt(count), seconds);
+          System.err.println(String.format("%s\t%.0f", count, rate));
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static double measure(Provider provider, int serverLoops, int connections, int seconds)
+      throws IOException, InterruptedException {
+    EndpointOptions options = new EndpointOptions().eventLoopThreads(serverLoops);
+    EngineEventLoopServer server =
+        (EngineEventLoopServer) new EngineEndpointFactory(provider, options).newServer(false);
+    server.start();
+
+    SSLContext clientContext = TestUtils.newClientContext(provider);
+    int clientLoopCount = Math.max(1, serverLoops / 2);
+    EngineEventLoop[] clientLoops = new EngineEventLoop[clientLoopCount];
+    ExecutorService executor = Executors.newFixedThreadPool(clientLoopCount);
+    for (int i = 0; i < clientLoopCount; i++) {
+      clientLoops[i] = new EngineEventLoop();
+      executor.submit(clientLoops[i]);
+    }
+
+    try {
+      ClosedLoopHandler handler = new ClosedLoopHandler(connections);
+      for (int i = 0; i < connections; i++) {
+        SocketChannel channel =
+            SocketChannel.open(new InetSocketAddress("localhost", server.port()));
+        EngineWrapper engineWrapper = new EngineWrapper(
+            EngineClient.newClientEngine(clientContext, options, server.port(), false), options);
+        clientLoops[i % clientLoopCount].register(channel, engineWrapper, handler);
+      }
+      if (!handler.handshakes.await(5, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("Timed out waiting for handshakes");
+      }
+      if (server.connectionCount() != connections) {
+        throw new IllegalStateException(
+            "Expected " + connections + " connections, found " + server.connectionCount());
+      }
+
+      TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+      long start = System.nanoTime();
+      long before = handler.replies.sum();
+      TimeUnit.SECONDS.sleep(seconds);
+      long replies = handler.replies.sum() - before;
+      return replies / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+    } finally {
+      for (EngineEventLoop loop : clientLoops) {
+        loop.shutdown();
+      }
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+      server.stop();
+    }
+  }
+
+  /**
+   * Sends the next message as soon as the previous reply arrives.
+   */
+  private static final class ClosedLoopHandler implements EngineEventLoop.Handler {
+    private final CountDownLatch handshakes;
+    private final LongAdder replies = new LongAdder();
+
+    ClosedLoopHandler(int connections) {
+      handshakes = new CountDownLatch(connections);
+    }
+
+    @Override
+    public void handshakeComplete(EngineEventLoop.Connection connection) throws IOException {
+      handshakes.countDown();
+      connection.sendMessage();
+    }
+
+    @Override
+    public void messagesReceived(EngineEventLoop.Connection connection, int count)
+        throws IOException {
+      replies.add(count);
+      for (int i = 0; i < count; i++) {
+        connection.sendMessage();
+      }
+    }
+  }
+}
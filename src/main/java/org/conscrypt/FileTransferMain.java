@@ -0,0 +1,239 @@
+package org.conscrypt;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.Provider;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Sends a file over a single TLS connection on localhost in two ways and reports the throughput
+ * and how many bytes of plaintext the application itself copies, per byte of the file, counting
+ * both sides:
+ *
+ * <ul>
+ *   <li>{@code MAPPED}: engine-based endpoints map both files with {@link FileChannel#map} and
+ *       hand the windows to {@link EngineWrapper#sendBuffers} and
+ *       {@link EngineWrapper#receiveInto}, so plaintext is only copied, out of the direct
+ *       application buffer, where a record straddles the end of the output file. For Conscrypt,
+ *       the number of times the engines had to copy into native memory is counted as well; with
+ *       mapped, and therefore direct, buffers it should be zero.
+ *   <li>{@code STREAM}: {@link SSLSocket} streams, with the file read into heap arrays on one side
+ *       and written from them on the other, which copies every byte once on each side.
+ * </ul>
+ *
+ * <p>Each mode runs once to warm up before the measured run, and the output is compared with the
+ * source afterwards.
+ *
+ * <p>Arguments (all optional): file size in megabytes and the directory for the files.
+ */
+public class FileTransferMain {
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+  private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+  public static void main(String[] args) {
+    try {
+      long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 512;
+      Path directory = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+
+      Path source = Files.createTempFile(directory, "transfer-source", ".bin");
+      Path target = Files.createTempFile(directory, "transfer-target", ".bin");
+      try {
+        long size = megabytes * 1024 * 1024;
+        writeRandomFile(source, size);
+        for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+          System.err.println(String.format("provider=%s, size=%dMB", provider, megabytes));
+          System.err.println("mode\tMB/s\tappCopies/byte\tnativeCopies");
+          transferMapped(provider.newProvider(), source, target, size);
+          System.err.println("MAPPED\t" + transferMapped(provider.newProvider(), source, target,
+              size).format(provider == BenchmarkProvider.CONSCRYPT));
+          transferStream(provider.newProvider(), source, target, size);
+          System.err.println("STREAM\t" + transferStream(provider.newProvider(), source, target,
+              size).format(false));
+        }
+      } finally {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static Result transferMapped(Provider provider, Path source, Path target, long size)
+      throws Exception {
+    BufferPool copyPool = new BufferPool();
+    EndpointOptions options = new EndpointOptions()
+        .bufferStrategy(BufferStrategy.DIRECT)
+        .conscryptBufferPool(copyPool);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (Transport.Listener listener = TcpTransport.INSTANCE.listen();
+         FileChannel sourceFile = FileChannel.open(source, StandardOpenOption.READ);
+         FileChannel targetFile = FileChannel.open(target, StandardOpenOption.READ,
+             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      EngineWrapper serverWrapper = new EngineWrapper(EngineServer.newServerEngine(
+          TestUtils.newServerContext(provider), options, false), options);
+      EngineWrapper clientWrapper = new EngineWrapper(EngineClient.newClientEngine(
+          TestUtils.newClientContext(provider), options, listener.port(), false), options);
+
+      Future<Long> received = executor.submit(() -> {
+        try (ByteChannel channel = listener.accept()) {
+          serverWrapper.doHandshake(channel);
+          return serverWrapper.receiveInto(channel,
+              map(targetFile, FileChannel.MapMode.READ_WRITE, size));
+        } finally {
+          serverWrapper.close();
+        }
+      });
+      try (ByteChannel channel = TcpTransport.INSTANCE.connect(listener.port())) {
+        clientWrapper.doHandshake(channel);
+        ByteBuffer[] windows = map(sourceFile, FileChannel.MapMode.READ_ONLY, size);
+        long copiesBefore = copyPool.acquisitions();
+        long start = System.nanoTime();
+        clientWrapper.sendBuffers(channel, windows);
+        long bytesCopied = received.get();
+        long nanos = System.nanoTime() - start;
+
+        verify(sourceFile, targetFile, size);
+        return new Result(size, nanos, bytesCopied, copyPool.acquisitions() - copiesBefore);
+      } finally {
+        clientWrapper.close();
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  private static Result transferStream(Provider provider, Path source, Path target, long size)
+      throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (SSLServerSocket serverSocket = (SSLServerSocket) TestUtils.newServerContext(provider)
+        .getServerSocketFactory().createServerSocket(0)) {
+      Future<Long> received = executor.submit(() -> {
+        try (SSLSocket socket = (SSLSocket) serverSocket.accept();
+             OutputStream out = new FileOutputStream(target.toFile())) {
+          socket.startHandshake();
+          InputStream in = socket.getInputStream();
+          byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+          long bytesCopied = 0;
+          for (long remaining = size; remaining > 0;) {
+            int bytesRead = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+            if (bytesRead == -1) {
+              throw new IOException("Connection closed with " + remaining + " bytes to go");
+            }
+            out.write(chunk, 0, bytesRead);
+            bytesCopied += bytesRead;
+            remaining -= bytesRead;
+          }
+          return bytesCopied;
+        }
+      });
+      try (SSLSocket socket = (SSLSocket) TestUtils.newClientContext(provider)
+               .getSocketFactory().createSocket("localhost", serverSocket.getLocalPort());
+           InputStream in = new FileInputStream(source.toFile())) {
+        socket.setTcpNoDelay(true);
+        socket.startHandshake();
+        OutputStream out = socket.getOutputStream();
+        byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+        long bytesCopied = 0;
+        long start = System.nanoTime();
+        for (int bytesRead; (bytesRead = in.read(chunk)) != -1;) {
+          out.write(chunk, 0, bytesRead);
+          bytesCopied += bytesRead;
+        }
+        out.flush();
+        bytesCopied += received.get();
+        long nanos = System.nanoTime() - start;
+
+        try (FileChannel sourceFile = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel targetFile = FileChannel.open(target, StandardOpenOption.READ)) {
+          verify(sourceFile, targetFile, size);
+        }
+        return new Result(size, nanos, bytesCopied, -1);
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Maps the first {@code size} bytes of a file in windows of at most {@link #WINDOW_SIZE} bytes.
+   * Mapping a file for writing extends it to that size.
+   */
+  private static ByteBuffer[] map(FileChannel file, FileChannel.MapMode mode, long size)
+      throws IOException {
+    ByteBuffer[] windows = new ByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+    for (int i = 0; i < windows.length; i++) {
+      long position = (long) i * WINDOW_SIZE;
+      windows[i] = file.map(mode, position, Math.min(WINDOW_SIZE, size - position));
+    }
+    return windows;
+  }
+
+  private static void verify(FileChannel sourceFile, FileChannel targetFile, long size)
+      throws IOException {
+    if (targetFile.size() != size) {
+      throw new IllegalStateException("Expected " + size + " bytes, found " + targetFile.size());
+    }
+    ByteBuffer[] expected = map(sourceFile, FileChannel.MapMode.READ_ONLY, size);
+    ByteBuffer[] actual = map(targetFile, FileChannel.MapMode.READ_ONLY, size);
+    for (int i = 0; i < expected.length; i++) {
+      if (!expected[i].equals(actual[i])) {
+        throw new IllegalStateException("The received file differs from the source");
+      }
+    }
+  }
+
+  private static void writeRandomFile(Path path, long size) throws IOException {
+    ByteBuffer chunk = ByteBuffer.allocate(1024 * 1024);
+    new Random(0).nextBytes(chunk.array());
+    try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (long remaining = size; remaining > 0; remaining -= chunk.limit()) {
+        chunk.clear().limit((int) Math.min(chunk.capacity(), remaining));
+        while (chunk.hasRemaining()) {
+          file.write(chunk);
+        }
+      }
+    }
+  }
+
+  private static final class Result {
+    private final long size;
+    private final long nanos;
+    private final long bytesCopied;
+    private final long nativeCopies;
+
+    Result(long size, long nanos, long bytesCopied, long nativeCopies) {
+      this.size = size;
+      this.nanos = nanos;
+      this.bytesCopied = bytesCopied;
+      this.nativeCopies = nativeCopies;
+    }
+
+    String format(boolean showNativeCopies) {
+      double megabytesPerSecond =
+          size / (1024.0 * 1024) / nanos * TimeUnit.SECONDS.toNanos(1);
+      return String.format("%.1f\t%.4f\t%s", megabytesPerSecond, (double) bytesCopied / size,
+          showNativeCopies ? Long.toString(nativeCopies) : "-");
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package org.conscrypt;
+
+/**
+ * When an {@link EngineWrapper} writes the records that {@link EngineWrapper#queueMessages} has
+ * batched up. Whatever the policy, a full batch is written before more is wrapped into it.
+ */
+public enum FlushPolicy {
+  /** After every call, so each batch costs one write. */
+  IMMEDIATE,
+  /**
+   * Once the batch holds at least {@link EndpointOptions#flushThreshold} bytes, and otherwise at
+   * the end of the event loop tick.
+   */
+  SIZE_THRESHOLD,
+  /** At the end of the event loop tick, once every ready connection has been processed. */
+  END_OF_TICK
+}
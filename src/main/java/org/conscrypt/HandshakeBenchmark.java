@@ -0,0 +1,65 @@
+package org.conscrypt;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures a full TLS handshake, including the TCP connect, on a freshly created client and
+ * server, with certificates generated for every {@link KeyType} at the start of each trial.
+ *
+ * <p>{@link KeyType#ED25519} needs JDK 15 or newer and fails during setup otherwise; skip it with
+ * {@code -p keyType=...}.
+ */
+public class HandshakeBenchmark extends EndpointBenchmark {
+  @Param
+  public KeyType keyType;
+
+  /**
+   * Number of certificates the server presents, including intermediate CAs.
+   */
+  @Param({"1"})
+  public int chainLength;
+
+  private KeyMaterial keyMaterial;
+
+  @Setup(Level.Trial)
+  public void generateKeyMaterial() {
+    keyMaterial = KeyMaterial.generate(keyType, chainLength);
+  }
+
+  @Override
+  EndpointOptions newOptions() {
+    return super.newOptions().keyMaterial(keyMaterial);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    newEndpoints();
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDown() {
+    stopEndpoints();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void handshakeThroughput() {
+    handshake();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void handshakeLatency() {
+    handshake();
+  }
+}
@@ -0,0 +1,54 @@
+package org.conscrypt;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.Future;
+
+/**
+ * Compares handshake latency of the engine-based endpoints when waiting for input on a selector
+ * versus the sleep-based polling they used originally.
+ */
+public class HandshakeLatencyMain {
+  private static final int WARMUP_ITERATIONS = 20;
+
+  public static void main(String[] args) {
+    try {
+      int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+      Provider[] providers = {new OpenSSLProvider(), Security.getProvider("SunJSSE")};
+      for (Provider provider : providers) {
+        for (boolean pollingReads : new boolean[] {true, false}) {
+          EndpointFactory endpointFactory = new EngineEndpointFactory(
+              provider, new EndpointOptions().pollingReads(pollingReads));
+          Histogram histogram = new Histogram();
+          for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+            long nanos = handshake(endpointFactory);
+            if (i >= WARMUP_ITERATIONS) {
+              histogram.record(nanos);
+            }
+          }
+          System.err.println(String.format("provider=%s, reads=%s: %s", provider.getName(),
+              pollingReads ? "polling" : "selector", histogram));
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static long handshake(EndpointFactory endpointFactory) {
+    Server server = endpointFactory.newServer(false);
+    Future<?> serverStartFuture = server.start();
+    Client client = endpointFactory.newClient(server.port(), false);
+    try {
+      long start = System.nanoTime();
+      Future<?> clientStartFuture = client.start();
+      TestUtils.wait(serverStartFuture);
+      TestUtils.wait(clientStartFuture);
+      return System.nanoTime() - start;
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package org.conscrypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for multi-connection servers: runs the handshakes of newly accepted
+ * connections on a bounded pool of its own, so that a flood of new connections can't take the
+ * threads that serve established ones. At most {@code threads} handshakes run at once and at
+ * most {@code queueCapacity} more wait for a thread. A connection that finds the queue full is
+ * delayed for up to the admission timeout, holding up the accept loop and therefore leaving
+ * further connections in the listen backlog, and is rejected if there is still no room by then.
+ * A handshake that hasn't finished within the handshake timeout has its connection closed, so
+ * that clients that never send anything can't hold on to the pool's threads.
+ *
+ * <p>Records how long admitted handshakes wait in the queue, separately from how long they take
+ * to run, and how many connections were rejected, failed their handshake or timed out.
+ */
+final class HandshakePool {
+  private final ExecutorService executor;
+  private final ScheduledExecutorService watchdog;
+  private final Semaphore admissions;
+  private final long admissionTimeoutNanos;
+  private final long handshakeTimeoutMillis;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final Histogram queueWait = new Histogram();
+  private final Histogram handshakeTime = new Histogram();
+  private long admitted;
+  private long rejected;
+  private long failed;
+  private long timedOut;
+  private int maxDepth;
+
+  /**
+   * @param admissionTimeoutMillis how long a connection may wait for room in the queue before it
+   *     is rejected. Zero rejects it straight away.
+   * @param handshakeTimeoutMillis how long a handshake may run before its connection is closed.
+   */
+  HandshakePool(int threads, int queueCapacity, long admissionTimeoutMillis,
+      long handshakeTimeoutMillis) {
+    if (threads <= 0 || queueCapacity < 0 || admissionTimeoutMillis < 0
+        || handshakeTimeoutMillis <= 0) {
+      throw new IllegalArgumentException(String.format("Invalid handshake pool: threads=%d, "
+              + "queueCapacity=%d, admissionTimeoutMillis=%d, handshakeTimeoutMillis=%d",
+          threads, queueCapacity, admissionTimeoutMillis, handshakeTimeoutMillis));
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "handshake-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "handshake-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    admissions = new Semaphore(threads + queueCapacity);
+    admissionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(admissionTimeoutMillis);
+    this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+  }
+
+  /**
+   * Queues a handshake to run on the pool, waiting for up to the admission timeout if the pool
+   * is full. The handshake returns whether it succeeded and cleans up after itself if it didn't;
+   * anything it throws is counted as a failure. If it runs for longer than the handshake timeout,
+   * the connection is closed underneath it, which should make it fail. A handshake that succeeds
+   * must {@link Deadline#disarm} its deadline before handing the connection on, and give up on
+   * the connection if it is too late for that.
+   *
+   * @return {@code false} if the handshake was rejected, in which case the caller should close
+   *     the connection.
+   */
+  boolean submit(Closeable connection, Handshake handshake) throws InterruptedException {
+    if (!admissions.tryAcquire(admissionTimeoutNanos, TimeUnit.NANOSECONDS)) {
+      recordRejected();
+      return false;
+    }
+    long submitted = System.nanoTime();
+    recordAdmitted(queueDepth.incrementAndGet());
+    executor.execute(() -> {
+      queueDepth.decrementAndGet();
+      long start = System.nanoTime();
+      Deadline deadline = new Deadline();
+      ScheduledFuture<?> timeout = watchdog.schedule(() -> {
+        if (deadline.expire()) {
+          try {
+            connection.close();
+          } catch (IOException ignored) {
+            // Ignored.
+          }
+        }
+      }, handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+      boolean succeeded = false;
+      try {
+        succeeded = handshake.run(deadline);
+      } catch (RuntimeException e) {
+        // Counted below, the pool's threads must survive whatever a handshake does.
+      } finally {
+        timeout.cancel(false);
+        deadline.disarm();
+        admissions.release();
+        recordHandshake(
+            start - submitted, System.nanoTime() - start, succeeded, deadline.expired);
+      }
+    });
+    return true;
+  }
+
+  void shutdown() {
+    executor.shutdown();
+    watchdog.shutdownNow();
+  }
+
+  synchronized long rejected() {
+    return rejected;
+  }
+
+  /**
+   * Discards all metrics recorded so far, for example at the end of a warm-up period.
+   */
+  synchronized void reset() {
+    queueWait.reset();
+    handshakeTime.reset();
+    admitted = 0;
+    rejected = 0;
+    failed = 0;
+    timedOut = 0;
+    maxDepth = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("admitted=%d, rejected=%d, failed=%d, timedOut=%d, maxQueueDepth=%d%n"
+            + "  queueWait: %s%n  handshakeTime: %s",
+        admitted, rejected, failed, timedOut, maxDepth, queueWait, handshakeTime);
+  }
+
+  /**
+   * A handshake to run on the pool.
+   */
+  interface Handshake {
+    /**
+     * @return {@code true} if the handshake succeeded and the connection was handed on.
+     */
+    boolean run(Deadline deadline);
+  }
+
+  /**
+   * The handshake timeout of a single connection. Whichever comes first, the handshake disarming
+   * it or the watchdog expiring it, wins.
+   */
+  static final class Deadline {
+    private final AtomicBoolean settled = new AtomicBoolean();
+    private volatile boolean expired;
+
+    /**
+     * Stops the watchdog from closing the connection.
+     *
+     * @return {@code false} if it is too late, because the connection has been closed already.
+     */
+    boolean disarm() {
+      return settled.compareAndSet(false, true);
+    }
+
+    private boolean expire() {
+      if (!settled.compareAndSet(false, true)) {
+        return false;
+      }
+      expired = true;
+      return true;
+    }
+  }
+
+  private synchronized void recordAdmitted(int depth) {
+    admitted++;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  private synchronized void recordRejected() {
+    rejected++;
+  }
+
+  private synchronized void recordHandshake(long waitNanos, long runNanos, boolean succeeded,
+      boolean expired) {
+    queueWait.record(waitNanos);
+    handshakeTime.record(runNanos);
+    if (expired) {
+      timedOut++;
+    } else if (!succeeded) {
+      failed++;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package org.conscrypt;
+
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * Measures full and resumed handshake rates against a long-lived multi-connection server.
+ * Clients repeatedly connect, handshake, exchange one message and disconnect. Only the handshake
+ * is timed; the message exchange makes sure TLS 1.3 clients have processed the server's session
+ * ticket before the next connection. Full handshakes give every client its own
+ * {@link javax.net.ssl.SSLContext}, while resumed handshakes share one so that its session cache
+ * is reused. Each run reports the fraction of handshakes that actually resumed a session, and a
+ * resumed run in which none did is flagged, since its rate is then that of full handshakes. Only
+ * a full handshake has the client verify the server's certificate, so the handshakes that
+ * didn't are the ones that resumed.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ *   <li>{@code iterations}: handshakes measured per configuration, 500 by default.
+ *   <li>{@code sessionCacheSize}: maximum server session cache size, 0 for unlimited.
+ *   <li>{@code sessionTimeout}: server session timeout in seconds, 0 for never.
+ *   <li>{@code sessionTickets}: {@code true} or {@code false} to force session tickets on or off.
+ * </ul>
+ * Anything left unset keeps the provider default.
+ */
+public class HandshakeRateMain {
+  private static final int WARMUP_ITERATIONS = 50;
+
+  public static void main(String[] args) {
+    try {
+      int iterations = Integer.getInteger("iterations", 500);
+      String sessionTickets = System.getProperty("sessionTickets");
+      if (sessionTickets != null) {
+        // The JDK provider only reads these once, before the first handshake.
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", sessionTickets);
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", sessionTickets);
+      }
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (EndpointType endpointType : EndpointType.values()) {
+          if (endpointType == EndpointType.MEMORY) {
+            // Memory servers only serve a single connection.
+            continue;
+          }
+          for (boolean resume : new boolean[] {false, true}) {
+            CountingTrustManager verifications = new CountingTrustManager(
+                (X509ExtendedTrustManager) KeyMaterial.get().clientTrustManagers()[0]);
+            EndpointOptions options = newOptions(sessionTickets)
+                .shareClientContext(resume)
+                .keyMaterial(KeyMaterial.get().withClientTrustManagers(
+                    new TrustManager[] {verifications}));
+            Histogram histogram = new Histogram();
+            long resumed = iterations - measure(
+                endpointType.newFactory(provider.newProvider(), options), iterations, histogram,
+                verifications);
+            double seconds = histogram.count() * histogram.meanNanos()
+                / TimeUnit.SECONDS.toNanos(1);
+            System.err.println(String.format(
+                "provider=%s, endpoint=%s, handshake=%s: %.1f/s, resumed=%.1f%%, %s%s",
+                provider, endpointType, resume ? "resumed" : "full",
+                histogram.count() / seconds, 100.0 * resumed / iterations, histogram,
+                resume && resumed == 0 ? " [NOT RESUMED]" : ""));
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static EndpointOptions newOptions(String sessionTickets) {
+    // Long-lived servers, so that the server session cache survives between connections.
+    EndpointOptions options = new EndpointOptions().eventLoopThreads(1).threadPerConnection(true);
+    Integer sessionCacheSize = Integer.getInteger("sessionCacheSize");
+    if (sessionCacheSize != null) {
+      options.serverSessionCacheSize(sessionCacheSize);
+    }
+    Integer sessionTimeout = Integer.getInteger("sessionTimeout");
+    if (sessionTimeout != null) {
+      options.serverSessionTimeout(sessionTimeout);
+    }
+    if (sessionTickets != null) {
+      options.sessionTickets(Boolean.parseBoolean(sessionTickets));
+    }
+    return options;
+  }
+
+  static Histogram measure(EndpointFactory endpointFactory, int iterations) {
+    Histogram histogram = new Histogram();
+    measure(endpointFactory, iterations, histogram, null);
+    return histogram;
+  }
+
+  /**
+   * Records the measured handshakes into {@code histogram}.
+   *
+   * @param verifications the trust manager the factory's clients verify the server with, or
+   *     {@code null} not to count full handshakes.
+   * @return how many of the measured handshakes verified the server's certificate, and were
+   *     therefore full handshakes, or -1 if not counted.
+   */
+  private static long measure(EndpointFactory endpointFactory, int iterations,
+      Histogram histogram, CountingTrustManager verifications) {
+    long verificationsBefore = -1;
+    Server server = endpointFactory.newServer(false);
+    TestUtils.wait(server.start());
+    try {
+      for (int i = 0; i < WARMUP_ITERATIONS + iterations; i++) {
+        if (i == WARMUP_ITERATIONS && verifications != null) {
+          verificationsBefore = verifications.count();
+        }
+        Client client = endpointFactory.newClient(server.port(), false);
+        try {
+          long start = System.nanoTime();
+          TestUtils.wait(client.start());
+          long nanos = System.nanoTime() - start;
+          if (i >= WARMUP_ITERATIONS) {
+            histogram.record(nanos);
+          }
+
+          client.sendMessage();
+          TestUtils.wait(client.readReply());
+        } finally {
+          client.stop();
+        }
+      }
+    } finally {
+      server.stop();
+    }
+    return verifications != null ? verifications.count() - verificationsBefore : -1;
+  }
+
+  /**
+   * Counts how often clients verify a server's certificate chain.
+   */
+  private static final class CountingTrustManager extends X509ExtendedTrustManager {
+    private final X509ExtendedTrustManager delegate;
+    private final AtomicLong serverChecks = new AtomicLong();
+
+    CountingTrustManager(X509ExtendedTrustManager delegate) {
+      this.delegate = delegate;
+    }
+
+    long count() {
+      return serverChecks.get();
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType)
+        throws CertificateException {
+      serverChecks.incrementAndGet();
+      delegate.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+        throws CertificateException {
+      serverChecks.incrementAndGet();
+      delegate.checkServerTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+        throws CertificateException {
+      serverChecks.incrementAndGet();
+      delegate.checkServerTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType)
+        throws CertificateException {
+      delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+        throws CertificateException {
+      delegate.checkClientTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+        throws CertificateException {
+      delegate.checkClientTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+      return delegate.getAcceptedIssuers();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package org.conscrypt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a reconnect storm against a long-lived multi-connection server. A few established
+ * connections echo messages back to back while many more clients connect, do a full handshake
+ * and disconnect as fast as they can. Each server runs once handshaking inline, on the threads
+ * that also serve established connections, and once with a {@link HandshakePool}. For each run,
+ * reports the echo latency of the established connections during the storm, the handshake rate
+ * and latency the storm clients saw, how many of their connections failed, and for the pool how
+ * long admitted handshakes waited in its queue.
+ *
+ * <p>Arguments (all optional): established connections, storm clients, storm seconds, handshake
+ * pool threads, handshake queue capacity, admission timeout and handshake timeout, both in
+ * milliseconds.
+ */
+public class HandshakeStormMain {
+  private static final long WARMUP_MILLIS = 1000;
+
+  public static void main(String[] args) {
+    try {
+      int established = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+      int stormClients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+      int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+      int handshakeThreads = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+      int queueCapacity = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+      long admissionTimeoutMillis = args.length > 5 ? Long.parseLong(args[5]) : 100;
+      long handshakeTimeoutMillis = args.length > 6 ? Long.parseLong(args[6]) : 5000;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (EndpointType endpointType : new EndpointType[] {EndpointType.SOCKET,
+            EndpointType.ENGINE}) {
+          for (boolean pooled : new boolean[] {false, true}) {
+            HandshakePool pool = pooled
+                ? new HandshakePool(handshakeThreads, queueCapacity, admissionTimeoutMillis,
+                    handshakeTimeoutMillis)
+                : null;
+            try {
+              // Socket servers get a thread per connection, engine servers a single event loop.
+              EndpointOptions options = new EndpointOptions()
+                  .eventLoopThreads(1)
+                  .threadPerConnection(true)
+                  .handshakePool(pool);
+              System.err.println(String.format("provider=%s, endpoint=%s, handshakes=%s",
+                  provider, endpointType, pooled ? "POOLED" : "INLINE"));
+              storm(endpointType.newFactory(provider.newProvider(), options), pool, established,
+                  stormClients, seconds);
+            } finally {
+              if (pool != null) {
+                pool.shutdown();
+              }
+            }
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void storm(EndpointFactory factory, HandshakePool pool, int established,
+      int stormClients, int seconds) throws Exception {
+    Server server = factory.newServer(false);
+    TestUtils.wait(server.start());
+    List<Client> clients = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(established + stormClients);
+    Storm storm = new Storm();
+    try {
+      for (int i = 0; i < established; i++) {
+        Client client = factory.newClient(server.port(), false);
+        clients.add(client);
+        TestUtils.wait(client.start());
+      }
+      List<Future<Histogram>> echoes = new ArrayList<>();
+      for (Client client : clients) {
+        echoes.add(executor.submit(() -> echo(client, storm)));
+      }
+      Thread.sleep(WARMUP_MILLIS);
+
+      if (pool != null) {
+        pool.reset();
+      }
+      storm.storming = true;
+      List<Future<Histogram>> handshakes = new ArrayList<>();
+      for (int i = 0; i < stormClients; i++) {
+        handshakes.add(executor.submit(() -> connect(factory, server.port(), storm)));
+      }
+      long start = System.nanoTime();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+      storm.running = false;
+
+      Histogram echoLatency = merge(echoes);
+      Histogram handshakeLatency = merge(handshakes);
+      double elapsedSeconds =
+          (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+      System.err.println(String.format("  %.1f handshakes/s, failed=%d",
+          handshakeLatency.count() / elapsedSeconds, storm.failed.get()));
+      System.err.println("  echo: " + echoLatency);
+      System.err.println("  handshake: " + handshakeLatency);
+      if (pool != null) {
+        System.err.println("  pool: " + pool);
+      }
+    } finally {
+      storm.running = false;
+      for (Client client : clients) {
+        client.stop();
+      }
+      server.stop();
+      executor.shutdown();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Echoes messages until the storm is over, recording the round trips made during the storm.
+   */
+  private static Histogram echo(Client client, Storm storm) {
+    Histogram histogram = new Histogram();
+    while (storm.running) {
+      long start = System.nanoTime();
+      client.sendMessage();
+      TestUtils.wait(client.readReply());
+      if (storm.storming) {
+        histogram.record(System.nanoTime() - start);
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Connects, handshakes and disconnects until the storm is over, recording the handshakes that
+   * succeed and counting the rest.
+   */
+  private static Histogram connect(EndpointFactory factory, int port, Storm storm) {
+    Histogram histogram = new Histogram();
+    while (storm.running) {
+      long start = System.nanoTime();
+      Client client = factory.newClient(port, false);
+      try {
+        TestUtils.wait(client.start());
+        histogram.record(System.nanoTime() - start);
+      } catch (RuntimeException e) {
+        // Rejected, or reset while waiting in the listen backlog.
+        storm.failed.incrementAndGet();
+      } finally {
+        try {
+          client.stop();
+        } catch (RuntimeException ignored) {
+          // Ignored.
+        }
+      }
+    }
+    return histogram;
+  }
+
+  private static Histogram merge(List<Future<Histogram>> futures) throws Exception {
+    Histogram merged = new Histogram();
+    for (Future<Histogram> future : futures) {
+      merged.add(future.get());
+    }
+    return merged;
+  }
+
+  private static final class Storm {
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean running = true;
+    private volatile boolean storming;
+  }
+}
@@ -0,0 +1,115 @@
+package org.conscrypt;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed-size log-linear histogram of nanosecond latencies. Values are bucketed with roughly 1%
+ * precision so recording is constant-time and never allocates.
+ */
+final class Histogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int BUCKET_COUNT = indexOf(Long.MAX_VALUE) + 1;
+
+  private final long[] counts = new long[BUCKET_COUNT];
+  private long totalCount;
+  private long totalNanos;
+  private long minNanos = Long.MAX_VALUE;
+  private long maxNanos;
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts[indexOf(nanos)]++;
+    totalCount++;
+    totalNanos += nanos;
+    minNanos = Math.min(minNanos, nanos);
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    totalNanos = 0;
+    minNanos = Long.MAX_VALUE;
+    maxNanos = 0;
+  }
+
+  /**
+   * Adds all values recorded by another histogram to this one.
+   */
+  void add(Histogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    totalNanos += other.totalNanos;
+    minNanos = Math.min(minNanos, other.minNanos);
+    maxNanos = Math.max(maxNanos, other.maxNanos);
+  }
+
+  long count() {
+    return totalCount;
+  }
+
+  long minNanos() {
+    return totalCount == 0 ? 0 : minNanos;
+  }
+
+  long maxNanos() {
+    return maxNanos;
+  }
+
+  double meanNanos() {
+    return totalCount == 0 ? 0 : (double) totalNanos / totalCount;
+  }
+
+  /**
+   * Returns the smallest recorded value (to within bucket precision) such that at least
+   * {@code percentile} percent of all recorded values are less than or equal to it.
+   */
+  long percentileNanos(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestValueAt(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, p99.9=%.1fus, max=%.1fus",
+        count(), meanNanos() / 1000.0, micros(percentileNanos(50)), micros(percentileNanos(99)),
+        micros(percentileNanos(99.9)), micros(maxNanos()));
+  }
+
+  private static double micros(long nanos) {
+    return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+  }
+
+  private static int indexOf(long value) {
+    int msb = 63 - Long.numberOfLeadingZeros(value);
+    if (msb < SUB_BUCKET_BITS) {
+      return (int) value;
+    }
+    int shift = msb - SUB_BUCKET_BITS + 1;
+    return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+  }
+
+  private static long highestValueAt(int index) {
+    if (index < (1 << SUB_BUCKET_BITS)) {
+      return index;
+    }
+    int shift = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+    long subBucket = index - ((long) shift << (SUB_BUCKET_BITS - 1));
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
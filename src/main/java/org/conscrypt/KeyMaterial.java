@@ -0,0 +1,216 @@
+package org.conscrypt;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CharStreams;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.security.KeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * The certificates and private key the endpoints use, wrapped in the key and trust managers that
+ * contexts are initialized with. {@link #get()} returns the ones parsed from the PEM files in
+ * src/main/resources/certs, loading them only once per process, and {@link #generate} issues new
+ * ones of any {@link KeyType}. The managers are immutable and can be shared by any number of
+ * contexts.
+ */
+final class KeyMaterial {
+  private static final Pattern KEY_PATTERN = Pattern.compile(
+      "-+BEGIN\\s+.*PRIVATE\\s+KEY[^-]*-+(?:\\s|\\r|\\n)+" + // Header
+          "([a-z0-9+/=\\r\\n]+)" +                       // Base64 text
+          "-+END\\s+.*PRIVATE\\s+KEY[^-]*-+",            // Footer
+      Pattern.CASE_INSENSITIVE);
+
+  private final TrustManager[] clientTrustManagers;
+  private final KeyManager[] serverKeyManagers;
+  private final TrustManager[] serverTrustManagers;
+
+  private KeyMaterial(TrustManager[] clientTrustManagers, KeyManager[] serverKeyManagers,
+      TrustManager[] serverTrustManagers) {
+    this.clientTrustManagers = clientTrustManagers;
+    this.serverKeyManagers = serverKeyManagers;
+    this.serverTrustManagers = serverTrustManagers;
+  }
+
+  /**
+   * Returns the key material, loading it on first use.
+   */
+  static KeyMaterial get() {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * Loads and parses the key material from the classpath, bypassing the cache.
+   */
+  static KeyMaterial load() {
+    try {
+      X509Certificate caCert = readCertificate("ca.pem");
+      X509Certificate serverCert = readCertificate("server1.pem");
+      PrivateKey serverKey = KeyFactory.getInstance(serverCert.getPublicKey().getAlgorithm())
+          .generatePrivate(new PKCS8EncodedKeySpec(readPrivateKey("server1.key")));
+      return create(caCert, serverKey, new X509Certificate[] {serverCert});
+    } catch (IOException | GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Loads only what clients need from the classpath, the CA certificate, bypassing the cache. The
+   * result has no server key or trust managers, so it can only be used for client contexts.
+   */
+  static KeyMaterial loadClient() {
+    try {
+      return new KeyMaterial(newClientTrustManagers(readCertificate("ca.pem")), null, null);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Generates a new CA and a server certificate chain with keys of the given type. The server
+   * presents {@code chainLength} certificates: its own, followed by {@code chainLength - 1}
+   * intermediate CAs. Only the root CA, which the server doesn't send, is trusted by clients.
+   */
+  static KeyMaterial generate(KeyType keyType, int chainLength) {
+    if (chainLength < 1) {
+      throw new IllegalArgumentException("Invalid chain length: " + chainLength);
+    }
+    try {
+      KeyPair issuerKeys = keyType.generateKeyPair();
+      String issuer = "Benchmark Root CA";
+      X509Certificate rootCert = CertificateGenerator.issue(
+          issuer, issuerKeys.getPublic(), issuer, issuerKeys.getPrivate(), keyType, true);
+
+      X509Certificate[] chain = new X509Certificate[chainLength];
+      for (int i = chainLength - 1; i > 0; i--) {
+        KeyPair keys = keyType.generateKeyPair();
+        String subject = "Benchmark Intermediate CA " + i;
+        chain[i] = CertificateGenerator.issue(
+            subject, keys.getPublic(), issuer, issuerKeys.getPrivate(), keyType, true);
+        issuerKeys = keys;
+        issuer = subject;
+      }
+      KeyPair serverKeys = keyType.generateKeyPair();
+      chain[0] = CertificateGenerator.issue(
+          "localhost", serverKeys.getPublic(), issuer, issuerKeys.getPrivate(), keyType, false);
+      return create(rootCert, serverKeys.getPrivate(), chain);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static KeyMaterial create(X509Certificate caCert, PrivateKey serverKey,
+      X509Certificate[] serverChain) throws IOException, GeneralSecurityException {
+    KeyStore keyStore = newKeyStore();
+    keyStore.setKeyEntry("key", serverKey, new char[0], serverChain);
+
+    // Unlocking the key is what makes building these expensive.
+    KeyManagerFactory kmf =
+        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    kmf.init(keyStore, new char[0]);
+    return new KeyMaterial(
+        newClientTrustManagers(caCert), kmf.getKeyManagers(), newTrustManagers(keyStore));
+  }
+
+  private static TrustManager[] newClientTrustManagers(X509Certificate caCert)
+      throws IOException, GeneralSecurityException {
+    KeyStore trustStore = newKeyStore();
+    X500Principal principal = caCert.getSubjectX500Principal();
+    trustStore.setCertificateEntry(principal.getName("RFC2253"), caCert);
+    return newTrustManagers(trustStore);
+  }
+
+  /**
+   * Returns a copy of this key material whose clients use the given trust managers instead.
+   */
+  KeyMaterial withClientTrustManagers(TrustManager[] clientTrustManagers) {
+    return new KeyMaterial(clientTrustManagers, serverKeyManagers, serverTrustManagers);
+  }
+
+  /**
+   * Trust managers that trust the CA certificate.
+   */
+  TrustManager[] clientTrustManagers() {
+    return clientTrustManagers;
+  }
+
+  /**
+   * Key managers that hold the server's private key and certificate.
+   */
+  KeyManager[] serverKeyManagers() {
+    return serverKeyManagers;
+  }
+
+  TrustManager[] serverTrustManagers() {
+    return serverTrustManagers;
+  }
+
+  private static TrustManager[] newTrustManagers(KeyStore ks) throws GeneralSecurityException {
+    TrustManagerFactory trustManagerFactory =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(ks);
+    return trustManagerFactory.getTrustManagers();
+  }
+
+  private static KeyStore newKeyStore() throws IOException, GeneralSecurityException {
+    KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+    ks.load(null, null);
+    return ks;
+  }
+
+  private static X509Certificate readCertificate(String name)
+      throws IOException, GeneralSecurityException {
+    try (InputStream in = new BufferedInputStream(openResource(name))) {
+      return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+    }
+  }
+
+  private static byte[] readPrivateKey(String name) throws IOException, KeyException {
+    String content;
+    try (Reader reader = new InputStreamReader(openResource(name), Charsets.US_ASCII)) {
+      content = CharStreams.toString(reader);
+    }
+
+    Matcher m = KEY_PATTERN.matcher(content);
+    if (!m.find()) {
+      throw new KeyException("could not find a PKCS #8 private key in input stream" +
+          " (see http://netty.io/wiki/sslcontextbuilder-and-private-key.html for more information)");
+    }
+
+    String data = m.group(1).replace("\n", "");
+    return BaseEncoding.base64().decode(data);
+  }
+
+  /**
+   * Opens a file from the classpath resources in src/main/resources/certs.
+   */
+  private static InputStream openResource(String name) throws IOException {
+    InputStream in = KeyMaterial.class.getResourceAsStream("/certs/" + name);
+    if (in == null) {
+      throw new IOException("Missing resource: /certs/" + name);
+    }
+    return in;
+  }
+
+  private static final class Holder {
+    static final KeyMaterial INSTANCE = load();
+  }
+}
@@ -0,0 +1,62 @@
+package org.conscrypt;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+/**
+ * The kinds of keys {@link KeyMaterial#generate} can issue certificates for. The key type decides
+ * what the server pays to sign every full handshake and what the client pays to verify the chain.
+ */
+public enum KeyType {
+  RSA_2048("RSA", new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4), "SHA256withRSA"),
+  RSA_3072("RSA", new RSAKeyGenParameterSpec(3072, RSAKeyGenParameterSpec.F4), "SHA256withRSA"),
+  RSA_4096("RSA", new RSAKeyGenParameterSpec(4096, RSAKeyGenParameterSpec.F4), "SHA256withRSA"),
+  ECDSA_P256("EC", new ECGenParameterSpec("secp256r1"), "SHA256withECDSA"),
+  ECDSA_P384("EC", new ECGenParameterSpec("secp384r1"), "SHA384withECDSA"),
+  /**
+   * Only available on JDK 15 and newer.
+   */
+  ED25519("Ed25519", null, "Ed25519");
+
+  private final String algorithm;
+  private final AlgorithmParameterSpec parameters;
+  private final String signatureAlgorithm;
+
+  KeyType(String algorithm, AlgorithmParameterSpec parameters, String signatureAlgorithm) {
+    this.algorithm = algorithm;
+    this.parameters = parameters;
+    this.signatureAlgorithm = signatureAlgorithm;
+  }
+
+  /**
+   * Returns whether the running JDK can generate keys of this type.
+   */
+  boolean isSupported() {
+    try {
+      KeyPairGenerator.getInstance(algorithm);
+      return true;
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    }
+  }
+
+  KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+    if (parameters != null) {
+      generator.initialize(parameters);
+    }
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Returns the JCA name of the algorithm that certificates are signed with by keys of this type.
+   */
+  String signatureAlgorithm() {
+    return signatureAlgorithm;
+  }
+}
@@ -0,0 +1,209 @@
+package org.conscrypt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator. Requests are sent on a fixed schedule at the target rate, spread
+ * round-robin across the connections, whether or not earlier replies have arrived. Latency is
+ * measured from the time each request was scheduled to go out rather than from when it actually
+ * did, so that a stalled server or an overloaded generator shows up in the latency instead of
+ * silently lowering the rate (coordinated omission). Every connection has a sender thread of its
+ * own, so that a send that blocks on one connection doesn't hold up the others. The send lag shows
+ * how far the senders fell behind their schedules.
+ *
+ * <p>ENGINE and SOCKET endpoints connect to a single multi-connection server. MEMORY endpoints
+ * get a server per connection, since their servers only serve one.
+ *
+ * <p>Flags, all optional, given as {@code --name=value}:
+ * <ul>
+ *   <li>{@code connections}: number of connections, 1 by default.
+ *   <li>{@code rate}: target requests per second across all connections, 1000 by default.
+ *   <li>{@code duration}: measurement seconds, 10 by default.
+ *   <li>{@code warmup}: seconds of load before the measurement, 2 by default.
+ *   <li>{@code payload}: request and reply size in bytes, 1024 by default.
+ *   <li>{@code provider}: a {@link BenchmarkProvider}, CONSCRYPT by default.
+ *   <li>{@code endpoint}: an {@link EndpointType}, ENGINE by default.
+ *   <li>{@code alpn}: {@code true} to negotiate ALPN.
+ * </ul>
+ */
+public class LoadGeneratorMain {
+  private static final long START_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  public static void main(String[] args) {
+    try {
+      Map<String, String> flags = parseFlags(args);
+      int connections = Integer.parseInt(flag(flags, "connections", "1"));
+      double rate = Double.parseDouble(flag(flags, "rate", "1000"));
+      int duration = Integer.parseInt(flag(flags, "duration", "10"));
+      int warmup = Integer.parseInt(flag(flags, "warmup", "2"));
+      int payload = Integer.parseInt(flag(flags, "payload", "1024"));
+      BenchmarkProvider provider = BenchmarkProvider.valueOf(flag(flags, "provider", "CONSCRYPT"));
+      EndpointType endpointType = EndpointType.valueOf(flag(flags, "endpoint", "ENGINE"));
+      boolean alpn = Boolean.parseBoolean(flag(flags, "alpn", "false"));
+      if (!flags.isEmpty()) {
+        throw new IllegalArgumentException("Unknown flags: " + flags.keySet());
+      }
+
+      EndpointOptions options = new EndpointOptions()
+          .messageLength(payload)
+          .shareClientContext(true);
+      if (endpointType != EndpointType.MEMORY) {
+        options.eventLoopThreads(Runtime.getRuntime().availableProcessors())
+            .threadPerConnection(true);
+      }
+      EndpointFactory factory = endpointType.newFactory(provider.newProvider(), options);
+
+      List<Server> servers = new ArrayList<>();
+      List<Client> clients = new ArrayList<>();
+      ExecutorService senders = Executors.newFixedThreadPool(connections);
+      try {
+        Server sharedServer = null;
+        if (endpointType != EndpointType.MEMORY) {
+          sharedServer = factory.newServer(alpn);
+          servers.add(sharedServer);
+          TestUtils.wait(sharedServer.start());
+        }
+        for (int i = 0; i < connections; i++) {
+          Server server = sharedServer;
+          Future<?> serverStartFuture = null;
+          if (server == null) {
+            server = factory.newServer(alpn);
+            servers.add(server);
+            serverStartFuture = server.start();
+          }
+          Client client = factory.newClient(server.port(), alpn);
+          clients.add(client);
+          TestUtils.wait(client.start());
+          if (serverStartFuture != null) {
+            TestUtils.wait(serverStartFuture);
+          }
+        }
+
+        Schedule schedule = new Schedule(rate, warmup);
+        Histogram latency = new Histogram();
+        long requests = (long) (rate * (warmup + duration));
+        List<Future<?>> replies = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+          int connection = i;
+          int count = (int) ((requests - connection + connections - 1) / connections);
+          replies.add(clients.get(i).readReplies(count, index -> {
+            long request = (long) index * connections + connection;
+            long intended = schedule.sendTime(request);
+            long nanos = System.nanoTime() - intended;
+            if (intended >= schedule.measurementStart) {
+              synchronized (latency) {
+                latency.record(nanos);
+              }
+            }
+          }));
+        }
+
+        List<Future<Histogram>> sends = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+          int connection = i;
+          sends.add(senders.submit(() -> send(clients.get(connection), schedule, connection,
+              connections, requests)));
+        }
+        Histogram sendLag = new Histogram();
+        for (Future<Histogram> future : sends) {
+          sendLag.add(future.get());
+        }
+        for (Future<?> future : replies) {
+          TestUtils.wait(future);
+        }
+        double seconds = (System.nanoTime() - schedule.measurementStart)
+            / (double) TimeUnit.SECONDS.toNanos(1);
+
+        System.err.println(String.format(
+            "provider=%s, endpoint=%s, connections=%d, payload=%d, target=%.1f/s",
+            provider, endpointType, connections, payload, rate));
+        synchronized (latency) {
+          System.err.println(
+              String.format("achieved=%.1f/s%nlatency: %s", latency.count() / seconds, latency));
+        }
+        System.err.println("sendLag: " + sendLag);
+      } finally {
+        senders.shutdownNow();
+        for (Client client : clients) {
+          client.stop();
+        }
+        for (Server server : servers) {
+          server.stop();
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Sends one connection's share of the requests, every {@code connections}th starting at
+   * {@code connection}, each at its scheduled time.
+   *
+   * @return how late the measured requests were sent.
+   */
+  private static Histogram send(Client client, Schedule schedule, int connection,
+      int connections, long requests) {
+    Histogram sendLag = new Histogram();
+    for (long request = connection; request < requests; request += connections) {
+      long intended = schedule.sendTime(request);
+      long now;
+      while ((now = System.nanoTime()) < intended) {
+        LockSupport.parkNanos(intended - now);
+      }
+      if (intended >= schedule.measurementStart) {
+        sendLag.record(now - intended);
+      }
+      client.sendMessage();
+    }
+    return sendLag;
+  }
+
+  private static Map<String, String> parseFlags(String[] args) {
+    Map<String, String> flags = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+      }
+      flags.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    return flags;
+  }
+
+  /**
+   * Removes a flag from the map, so that any flags left over at the end are unknown.
+   */
+  private static String flag(Map<String, String> flags, String name, String defaultValue) {
+    String value = flags.remove(name);
+    return value != null ? value : defaultValue;
+  }
+
+  /**
+   * When each request should be sent, counting requests across all connections.
+   */
+  private static final class Schedule {
+    private final long start;
+    private final double nanosPerRequest;
+    private final long measurementStart;
+
+    Schedule(double rate, int warmupSeconds) {
+      start = System.nanoTime() + START_DELAY_NANOS;
+      nanosPerRequest = TimeUnit.SECONDS.toNanos(1) / rate;
+      measurementStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    }
+
+    long sendTime(long request) {
+      return start + (long) (request * nanosPerRequest);
+    }
+  }
+}
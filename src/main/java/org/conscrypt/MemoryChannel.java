@@ -0,0 +1,178 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One end of an in-process connection. Whatever is written to one end can be read from the other,
+ * through a fixed-size ring buffer in each direction. Like a non-blocking socket, reads and
+ * writes transfer whatever they can without blocking, and {@link #await} stands in for a
+ * {@link java.nio.channels.Selector}.
+ *
+ * <p>Closing one end makes reads from the other return end-of-stream once they have drained
+ * what was already sent, and writes to it fail.
+ */
+final class MemoryChannel implements ByteChannel {
+  private final Pipe pipe;
+  private final RingBuffer in;
+  private final RingBuffer out;
+  private MemoryChannel peer;
+  private boolean closed;
+
+  private MemoryChannel(Pipe pipe, RingBuffer in, RingBuffer out) {
+    this.pipe = pipe;
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Creates both ends of a connection, buffering up to {@code capacity} bytes in each direction.
+   */
+  static MemoryChannel[] newPair(int capacity) {
+    Pipe pipe = new Pipe();
+    RingBuffer forward = new RingBuffer(capacity);
+    RingBuffer backward = new RingBuffer(capacity);
+    MemoryChannel first = new MemoryChannel(pipe, backward, forward);
+    MemoryChannel second = new MemoryChannel(pipe, forward, backward);
+    first.peer = second;
+    second.peer = first;
+    return new MemoryChannel[] {first, second};
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    synchronized (pipe) {
+      if (closed) {
+        throw new ClosedChannelException();
+      }
+      if (in.size == 0) {
+        return peer.closed ? -1 : 0;
+      }
+      int bytesRead = in.read(dst);
+      pipe.signal();
+      return bytesRead;
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    synchronized (pipe) {
+      if (closed) {
+        throw new ClosedChannelException();
+      }
+      if (peer.closed) {
+        throw new IOException("Connection closed by peer");
+      }
+      int bytesWritten = out.write(src);
+      if (bytesWritten > 0) {
+        pipe.signal();
+      }
+      return bytesWritten;
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    synchronized (pipe) {
+      return !closed;
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (pipe) {
+      closed = true;
+      pipe.signal();
+    }
+  }
+
+  /**
+   * Blocks until this end is ready for any of the given {@link SelectionKey} operations, or
+   * either end has been closed.
+   */
+  void await(int interestOps) throws IOException {
+    await(interestOps, 0);
+  }
+
+  /**
+   * Like {@link #await(int)}, but gives up after {@code timeoutMillis}, where zero means never.
+   */
+  void await(int interestOps, long timeoutMillis) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    synchronized (pipe) {
+      while (!closed && !peer.closed && !isReady(interestOps)) {
+        long waitMillis = 0;
+        if (timeoutMillis > 0) {
+          long remainingNanos = deadline - System.nanoTime();
+          if (remainingNanos <= 0) {
+            return;
+          }
+          waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos));
+        }
+        pipe.waiters++;
+        try {
+          pipe.wait(waitMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        } finally {
+          pipe.waiters--;
+        }
+      }
+    }
+  }
+
+  private boolean isReady(int interestOps) {
+    return ((interestOps & SelectionKey.OP_READ) != 0 && in.size > 0)
+        || ((interestOps & SelectionKey.OP_WRITE) != 0 && out.size < out.bytes.length);
+  }
+
+  /**
+   * The lock shared by both ends, which threads waiting on either end wait on.
+   */
+  private static final class Pipe {
+    private int waiters;
+
+    void signal() {
+      if (waiters > 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  private static final class RingBuffer {
+    private final byte[] bytes;
+    private int start;
+    private int size;
+
+    RingBuffer(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    int read(ByteBuffer dst) {
+      int total = Math.min(size, dst.remaining());
+      // At most two chunks: up to the end of the array, then from its start.
+      int first = Math.min(total, bytes.length - start);
+      dst.put(bytes, start, first);
+      dst.put(bytes, 0, total - first);
+      start = (start + total) % bytes.length;
+      size -= total;
+      return total;
+    }
+
+    int write(ByteBuffer src) {
+      int total = Math.min(bytes.length - size, src.remaining());
+      int end = (start + size) % bytes.length;
+      int first = Math.min(total, bytes.length - end);
+      src.get(bytes, end, first);
+      src.get(bytes, 0, total - first);
+      size += total;
+      return total;
+    }
+  }
+}
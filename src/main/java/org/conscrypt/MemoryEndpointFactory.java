@@ -0,0 +1,30 @@
+package org.conscrypt;
+
+import java.security.Provider;
+
+/**
+ * Creates engine-based endpoints that talk over {@link MemoryChannel}s instead of TCP sockets,
+ * to measure the cost of TLS without the network stack's. Servers serve a single connection;
+ * {@link EndpointOptions#eventLoopThreads} is not supported.
+ */
+final class MemoryEndpointFactory implements EndpointFactory {
+  private final EngineEndpointFactory delegate;
+
+  MemoryEndpointFactory(Provider provider) {
+    this(provider, new EndpointOptions());
+  }
+
+  MemoryEndpointFactory(Provider provider, EndpointOptions options) {
+    delegate = new EngineEndpointFactory(provider, options, new MemoryTransport());
+  }
+
+  @Override
+  public Client newClient(int port, boolean useAlpn) {
+    return delegate.newClient(port, useAlpn);
+  }
+
+  @Override
+  public Server newServer(boolean useAlpn) {
+    return delegate.newServer(useAlpn);
+  }
+}
@@ -0,0 +1,91 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects endpoints through {@link MemoryChannel}s, so that no network stack is involved. Ports
+ * are only meaningful within the transport instance that handed them out.
+ */
+final class MemoryTransport implements Transport {
+  // Roughly what the kernel buffers for a loopback socket.
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private final Map<Integer, MemoryListener> listeners = new ConcurrentHashMap<>();
+  private final AtomicInteger nextPort = new AtomicInteger(1);
+
+  @Override
+  public Listener listen() {
+    MemoryListener listener = new MemoryListener(nextPort.getAndIncrement());
+    listeners.put(listener.port, listener);
+    return listener;
+  }
+
+  @Override
+  public ByteChannel connect(int port) throws IOException {
+    MemoryListener listener = listeners.get(port);
+    if (listener == null) {
+      throw new ConnectException("Connection refused: " + port);
+    }
+    MemoryChannel[] pair = MemoryChannel.newPair(BUFFER_SIZE);
+    listener.offer(pair[1]);
+    return pair[0];
+  }
+
+  private final class MemoryListener implements Listener {
+    private final int port;
+    private final ArrayDeque<MemoryChannel> pending = new ArrayDeque<>();
+    private boolean closed;
+
+    MemoryListener(int port) {
+      this.port = port;
+    }
+
+    @Override
+    public int port() {
+      return port;
+    }
+
+    @Override
+    public synchronized ByteChannel accept() throws IOException {
+      while (pending.isEmpty() && !closed) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      if (closed) {
+        throw new ClosedChannelException();
+      }
+      return pending.poll();
+    }
+
+    synchronized void offer(MemoryChannel channel) throws IOException {
+      if (closed) {
+        throw new ConnectException("Connection refused: " + port);
+      }
+      pending.add(channel);
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+      listeners.remove(port);
+      closed = true;
+      for (MemoryChannel channel : pending) {
+        channel.close();
+      }
+      pending.clear();
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package org.conscrypt;
+
+import java.util.Random;
+
+/**
+ * The content of the messages that clients send and servers echo. TLS doesn't compress, so the
+ * content doesn't change what goes over the wire, but it lets a run rule out content-dependent
+ * effects elsewhere in the stack.
+ */
+enum Payload {
+  /**
+   * The default message, "Hello", repeated to fill the message length.
+   */
+  TEXT {
+    @Override
+    void fill(byte[] bytes) {
+      byte[] text = TestUtils.messageBytes();
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = text[i % text.length];
+      }
+    }
+  },
+
+  ZEROS {
+    @Override
+    void fill(byte[] bytes) {
+      // Already zero.
+    }
+  },
+
+  /**
+   * Pseudo-random bytes from a fixed seed, so that every endpoint generates the same message.
+   */
+  RANDOM {
+    @Override
+    void fill(byte[] bytes) {
+      new Random(0).nextBytes(bytes);
+    }
+  };
+
+  abstract void fill(byte[] bytes);
+}
@@ -0,0 +1,57 @@
+package org.conscrypt;
+
+import java.util.concurrent.Future;
+
+/**
+ * Breaks the work of the engine-based endpoints down into phases, so that slow handshakes and
+ * echoes can be attributed to the engine, the channel or delegated tasks. Every connection
+ * handshakes and then echoes a number of messages; the {@link PhaseHistograms} of both sides are
+ * reset after a warm-up and dumped at the end.
+ *
+ * <p>Arguments (all optional): connections, messages per connection and the message length.
+ */
+public class PhaseBreakdownMain {
+  public static void main(String[] args) {
+    try {
+      int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+      int messages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+      int messageLength = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (EndpointType endpointType : new EndpointType[] {EndpointType.ENGINE,
+            EndpointType.MEMORY}) {
+          PhaseHistograms phases = new PhaseHistograms();
+          EndpointFactory factory = endpointType.newFactory(provider.newProvider(),
+              new EndpointOptions().messageLength(messageLength).phaseHistograms(phases));
+          run(factory, connections / 10, messages);
+          phases.reset();
+          run(factory, connections, messages);
+          System.err.println(String.format("provider=%s, endpoint=%s, messageLength=%d%n%s",
+              provider, endpointType, messageLength, phases));
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void run(EndpointFactory factory, int connections, int messages) {
+    for (int i = 0; i < connections; i++) {
+      Server server = factory.newServer(false);
+      Future<?> serverStartFuture = server.start();
+      Client client = factory.newClient(server.port(), false);
+      try {
+        TestUtils.wait(client.start());
+        TestUtils.wait(serverStartFuture);
+        for (int j = 0; j < messages; j++) {
+          client.sendMessage();
+          TestUtils.wait(client.readReply());
+        }
+      } finally {
+        client.stop();
+        server.stop();
+      }
+    }
+  }
+}
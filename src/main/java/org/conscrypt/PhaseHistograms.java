@@ -0,0 +1,98 @@
+package org.conscrypt;
+
+/**
+ * Latency histograms for each phase of the work an {@link EngineWrapper} does, shared by any
+ * number of wrappers. Threads record into one of a fixed number of stripes, picked by thread ID,
+ * so that recording rarely contends while memory stays the same however many short-lived threads
+ * record; {@link #snapshot} and {@link #toString} merge the stripes.
+ */
+final class PhaseHistograms {
+  enum Phase {
+    /** From the start of a handshake until the engine reports it has finished. */
+    HANDSHAKE,
+    /** A single {@code SSLEngine.wrap} call during the handshake. */
+    NEED_WRAP,
+    /** A single {@code SSLEngine.unwrap} call during the handshake. */
+    NEED_UNWRAP,
+    /** Running one batch of delegated tasks, including any time spent queued for a worker. */
+    NEED_TASK,
+    /** A single {@code SSLEngine.wrap} call for application data. */
+    WRAP,
+    /** A single {@code SSLEngine.unwrap} call after the handshake. */
+    UNWRAP,
+    /** A single non-blocking read from the channel. */
+    CHANNEL_READ,
+    /** A single non-blocking write to the channel. */
+    CHANNEL_WRITE
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+
+  private final Histogram[][] stripes =
+      new Histogram[2 * Runtime.getRuntime().availableProcessors()][];
+
+  PhaseHistograms() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = newHistograms();
+    }
+  }
+
+  void record(Phase phase, long nanos) {
+    Histogram[] histograms = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    synchronized (histograms) {
+      histograms[phase.ordinal()].record(nanos);
+    }
+  }
+
+  /**
+   * Returns a copy of everything recorded for the given phase so far, by all threads.
+   */
+  Histogram snapshot(Phase phase) {
+    Histogram merged = new Histogram();
+    for (Histogram[] histograms : stripes) {
+      synchronized (histograms) {
+        merged.add(histograms[phase.ordinal()]);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Discards everything recorded so far, for example at the end of a warm-up period.
+   */
+  void reset() {
+    for (Histogram[] histograms : stripes) {
+      synchronized (histograms) {
+        for (Histogram histogram : histograms) {
+          histogram.reset();
+        }
+      }
+    }
+  }
+
+  /**
+   * Lists the phases that have recorded anything, one per line.
+   */
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    for (Phase phase : PHASES) {
+      Histogram histogram = snapshot(phase);
+      if (histogram.count() > 0) {
+        if (builder.length() > 0) {
+          builder.append(System.lineSeparator());
+        }
+        builder.append(String.format("%-13s %s", phase, histogram));
+      }
+    }
+    return builder.toString();
+  }
+
+  private static Histogram[] newHistograms() {
+    Histogram[] histograms = new Histogram[PHASES.length];
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new Histogram();
+    }
+    return histograms;
+  }
+}
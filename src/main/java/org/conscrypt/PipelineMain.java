@@ -0,0 +1,83 @@
+package org.conscrypt;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures echo throughput and latency over a single connection as a function of the pipeline
+ * depth, i.e. the number of messages the client sends back to back before waiting for their
+ * replies. A depth of 1 is the plain round-trip that {@link EchoBenchmark} measures. Latency is
+ * measured per message, from just before it is sent until its reply has been read.
+ *
+ * <p>Arguments (all optional): measurement seconds per depth, a comma-separated list of depths,
+ * and the message length.
+ */
+public class PipelineMain {
+  private static final long WARMUP_SECONDS = 2;
+
+  public static void main(String[] args) {
+    try {
+      int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+      String[] depths = (args.length > 1 ? args[1] : "1,2,4,8,16,32,64").split(",");
+      int messageLength = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (EndpointType endpointType : EndpointType.values()) {
+          System.err.println(String.format("provider=%s, endpoint=%s, messageLength=%d",
+              provider, endpointType, messageLength));
+          System.err.println("depth\tmsgs/s\tlatency");
+          EndpointFactory factory = endpointType.newFactory(
+              provider.newProvider(), new EndpointOptions().messageLength(messageLength));
+          for (String depth : depths) {
+            measure(factory, Integer.parseInt(depth), seconds);
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void measure(EndpointFactory factory, int depth, int seconds) {
+    Server server = factory.newServer(false);
+    Future<?> serverStartFuture = server.start();
+    Client client = factory.newClient(server.port(), false);
+    try {
+      TestUtils.wait(client.start());
+      TestUtils.wait(serverStartFuture);
+
+      Histogram latency = new Histogram();
+      run(client, depth, TimeUnit.SECONDS.toNanos(WARMUP_SECONDS), latency);
+      latency.reset();
+      long start = System.nanoTime();
+      run(client, depth, TimeUnit.SECONDS.toNanos(seconds), latency);
+      double elapsedSeconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+      System.err.println(String.format(
+          "%d\t%.0f\t%s", depth, latency.count() / elapsedSeconds, latency));
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
+  /**
+   * Sends batches of {@code depth} messages until the given time has passed, recording the
+   * latency of every message.
+   */
+  private static void run(Client client, int depth, long nanos, Histogram latency) {
+    AtomicLongArray sendTimes = new AtomicLongArray(depth);
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end) {
+      // Only the reader thread touches the histogram until the future completes.
+      Future<?> replies = client.readReplies(
+          depth, index -> latency.record(System.nanoTime() - sendTimes.get(index)));
+      for (int i = 0; i < depth; i++) {
+        sendTimes.set(i, System.nanoTime());
+        client.sendMessage();
+      }
+      TestUtils.wait(replies);
+    }
+  }
+}
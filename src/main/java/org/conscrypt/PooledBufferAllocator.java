@@ -0,0 +1,34 @@
+package org.conscrypt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plugs a {@link BufferPool} into Conscrypt's engine-level buffer allocator hook. A Conscrypt
+ * engine asks its allocator for a direct buffer whenever it has to copy a heap buffer it was
+ * handed into native memory, and releases it right after the call, so the pool's
+ * {@link BufferPool#acquisitions()} count those copies.
+ */
+final class PooledBufferAllocator extends BufferAllocator {
+  private final BufferPool pool;
+
+  PooledBufferAllocator(BufferPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public AllocatedBuffer allocateDirectBuffer(int capacity) {
+    ByteBuffer buffer = pool.acquire(capacity, true);
+    return new AllocatedBuffer() {
+      @Override
+      public ByteBuffer nioBuffer() {
+        return buffer;
+      }
+
+      @Override
+      public AllocatedBuffer release() {
+        pool.release(buffer);
+        return this;
+      }
+    };
+  }
+}
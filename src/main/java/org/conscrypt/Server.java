@@ -1,9 +1,13 @@
 package org.conscrypt;
 
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Echoes every message it receives back to the client, in the order it received them. Clients
+ * don't need to wait for a reply before sending the next message.
+ */
 public interface Server {
   int port();
-  Future<?> start();
+  CompletableFuture<Void> start();
   void stop();
 }
@@ -1,41 +1,53 @@
 package org.conscrypt;
 
 import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
-import static org.conscrypt.TestUtils.MESSAGE_LENGTH;
-import static org.conscrypt.TestUtils.messageBytes;
-import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 final class SocketClient implements Client {
   private final SSLSocket sslSocket;
+  private final byte[] message;
+  private final int messageLength;
+  // Only used by the executor thread.
+  private final byte[] replyBuffer;
   private final int port;
   private final boolean useAlpn;
+  private final boolean virtualThreads;
+  private InputStream in;
+  private OutputStream out;
   private ExecutorService executor;
 
-  SocketClient(SSLContext context, int port, boolean useAlpn) {
+  SocketClient(SSLContext context, EndpointOptions options, int port, boolean useAlpn) {
     try {
+      this.message = options.messageBytes();
+      this.messageLength = message.length;
+      this.replyBuffer = new byte[messageLength];
       this.port = port;
       this.useAlpn = useAlpn;
+      this.virtualThreads = options.virtualThreads();
 
       // Create and configure the socket.
       SSLSocketFactory factory = context.getSocketFactory();
       sslSocket = (SSLSocket) factory.createSocket();
+      options.configure(sslSocket);
       if (useAlpn) {
-        if (!Conscrypt.isConscrypt(sslSocket)) {
-          throw new IllegalArgumentException("ALPN is only supported for Conscrypt sockets");
-        }
-        Conscrypt.setAlpnProtocols(sslSocket, new String[] {"foo", "bar", TestUtils.ALPN_PROTOCOL});
+        Alpn.setProtocols(sslSocket, "foo", "bar", TestUtils.ALPN_PROTOCOL);
       }
     } catch (Exception e) {
       throw new RuntimeException(e);
@@ -43,55 +55,67 @@ final class SocketClient implements Client {
   }
 
   @Override
-  public Future<?> start() {
+  public CompletableFuture<Void> start() {
     try {
-      executor = Executors.newSingleThreadExecutor();
+      executor = virtualThreads
+          ? Executors.newSingleThreadExecutor(VirtualThreads.newThreadFactory("socket-client-"))
+          : Executors.newSingleThreadExecutor();
+      sslSocket.setTcpNoDelay(true);
       sslSocket.connect(new InetSocketAddress("localhost", port));
+      in = sslSocket.getInputStream();
+      out = sslSocket.getOutputStream();
 
-      return executor.submit(() -> {
+      return CompletableFuture.runAsync(() -> {
         try {
           sslSocket.startHandshake();
           if (useAlpn) {
-            assertEquals(ALPN_PROTOCOL, Conscrypt.getAlpnSelectedProtocol(sslSocket));
+            assertEquals(ALPN_PROTOCOL, Alpn.selectedProtocol(sslSocket));
           }
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
-      });
+      }, executor);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
-  public void sendMessage() {
+  public boolean sendMessage() {
     try {
-      sslSocket.getOutputStream().write(messageBytes());
-      sslSocket.getOutputStream().flush();
+      out.write(message);
+      out.flush();
+      return true;
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
-  public Future<?> readReply() {
-    return executor.submit(() -> {
+  public CompletableFuture<Void> readReplies(int count, IntConsumer onReply) {
+    return CompletableFuture.runAsync(() -> {
       try {
-        byte[] buffer = new byte[MESSAGE_LENGTH];
-        int totalRead = 0;
-        while (totalRead < MESSAGE_LENGTH) {
-          int bytesRead =
-              sslSocket.getInputStream().read(buffer, totalRead, MESSAGE_LENGTH - totalRead);
-          if (bytesRead == -1) {
-            throw new EOFException();
+        for (int i = 0; i < count; i++) {
+          int totalRead = 0;
+          while (totalRead < messageLength) {
+            int bytesRead = in.read(replyBuffer, totalRead, messageLength - totalRead);
+            if (bytesRead == -1) {
+              throw new EOFException();
+            }
+            totalRead += bytesRead;
           }
-          totalRead += bytesRead;
+          assertTrue("Unexpected reply", Arrays.equals(message, replyBuffer));
+          onReply.accept(i);
         }
-        assertArrayEquals(messageBytes(), buffer);
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
-    });
+    }, executor);
+  }
+
+  @Override
+  public SSLSession session() {
+    return sslSocket.getSession();
   }
 
   @Override
@@ -3,19 +3,25 @@ package org.conscrypt;
 import java.security.Provider;
 
 final class SocketEndpointFactory implements EndpointFactory {
-  private final Provider provider;
+  private final EndpointOptions options;
+  private final EndpointContexts contexts;
 
   SocketEndpointFactory(Provider provider) {
-    this.provider = provider;
+    this(provider, new EndpointOptions());
+  }
+
+  SocketEndpointFactory(Provider provider, EndpointOptions options) {
+    this.options = options;
+    contexts = new EndpointContexts(provider, options);
   }
 
   @Override
   public Client newClient(int port, boolean useAlpn) {
-    return new SocketClient(TestUtils.newClientContext(provider), port, useAlpn);
+    return new SocketClient(contexts.clientContext(), options, port, useAlpn);
   }
 
   @Override
   public Server newServer(boolean useAlpn) {
-    return new SocketServer(TestUtils.newServerContext(provider), useAlpn);
+    return new SocketServer(contexts.newServerContext(), options, useAlpn);
   }
 }
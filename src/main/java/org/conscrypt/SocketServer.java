@@ -1,38 +1,46 @@
 package org.conscrypt;
 
 import static org.conscrypt.TestUtils.ALPN_PROTOCOL;
-import static org.conscrypt.TestUtils.MESSAGE_LENGTH;
-import static org.conscrypt.TestUtils.messageBytes;
-import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.lang.reflect.Method;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.function.BiFunction;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 
 final class SocketServer implements Server {
+  private static final int ACCEPT_BACKLOG = 4096;
+  // How long a client may go quiet during the handshake before its connection is dropped.
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
   private final SSLServerSocketFactory factory;
+  private final EndpointOptions options;
+  private final byte[] message;
+  private final int messageLength;
   private final boolean useAlpn;
+  private final Set<SSLSocket> sockets = ConcurrentHashMap.newKeySet();
   private SSLServerSocket serverSocket;
-  private SSLSocket sslSocket;
   private ExecutorService executor;
+  private volatile boolean stopped;
 
-  SocketServer(SSLContext context, boolean useAlpn) {
+  SocketServer(SSLContext context, EndpointOptions options, boolean useAlpn) {
+    this.options = options;
+    this.message = options.messageBytes();
+    this.messageLength = message.length;
     this.useAlpn = useAlpn;
     factory = context.getServerSocketFactory();
-    if (useAlpn && !Conscrypt.isConscrypt(factory)) {
-      throw new IllegalArgumentException("ALPN is only supported for Conscrypt sockets");
-    }
   }
 
   @Override
@@ -40,14 +48,28 @@ final class SocketServer implements Server {
     return serverSocket.getLocalPort();
   }
 
+  /**
+   * Starts the server. In thread-per-connection mode the returned future completes as soon as
+   * the server is listening, otherwise it completes once the first connection's handshake is done.
+   */
   @Override
-  public Future<?> start() {
+  public CompletableFuture<Void> start() {
     try {
-      executor = Executors.newSingleThreadExecutor();
-      serverSocket = (SSLServerSocket) factory.createServerSocket(0);
+      serverSocket = (SSLServerSocket) factory.createServerSocket(0, ACCEPT_BACKLOG);
+
+      if (options.threadPerConnection()) {
+        executor = options.virtualThreads()
+            ? VirtualThreads.newThreadPerTaskExecutor("socket-server-")
+            : Executors.newCachedThreadPool();
+        executor.submit(new AcceptLoopTask());
+        return CompletableFuture.completedFuture(null);
+      }
 
       // Start the message handler.
-      return executor.submit(new AcceptTask());
+      executor = options.virtualThreads()
+          ? Executors.newSingleThreadExecutor(VirtualThreads.newThreadFactory("socket-server-"))
+          : Executors.newSingleThreadExecutor();
+      return CompletableFuture.runAsync(new AcceptTask(), executor);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -56,7 +78,8 @@ final class SocketServer implements Server {
   @Override
   public void stop() {
     try {
-      if (sslSocket != null) {
+      stopped = true;
+      for (SSLSocket sslSocket : sockets) {
         sslSocket.close();
       }
 
@@ -72,26 +95,32 @@ final class SocketServer implements Server {
     }
   }
 
+  private SSLSocket accept() throws Exception {
+    SSLSocket sslSocket = (SSLSocket) serverSocket.accept();
+    sockets.add(sslSocket);
+    sslSocket.setTcpNoDelay(true);
+    options.configure(sslSocket);
+    if (useAlpn) {
+      Alpn.setSelector(sslSocket, (socket, strings) -> TestUtils.ALPN_PROTOCOL);
+    }
+    return sslSocket;
+  }
+
+  private void handshake(SSLSocket sslSocket) throws IOException {
+    sslSocket.startHandshake();
+
+    if (useAlpn) {
+      assertEquals(ALPN_PROTOCOL, Alpn.selectedProtocol(sslSocket));
+    }
+  }
+
   private final class AcceptTask implements Runnable {
     @Override
     public void run() {
       try {
-        sslSocket = (SSLSocket) serverSocket.accept();
-        if (useAlpn) {
-          BiFunction<SSLSocket, List<String>, String> selector =
-              (sslSocket, strings) -> TestUtils.ALPN_PROTOCOL;
-          Method method = sslSocket.getClass().getMethod(
-              "setHandshakeApplicationProtocolSelector", BiFunction.class);
-          method.invoke(sslSocket, selector);
-        }
-
-        sslSocket.startHandshake();
-
-        if (useAlpn) {
-          assertEquals(ALPN_PROTOCOL, Conscrypt.getAlpnSelectedProtocol(sslSocket));
-        }
-
-        executor.submit(new EchoTask());
+        SSLSocket sslSocket = accept();
+        handshake(sslSocket);
+        executor.submit(new EchoTask(sslSocket));
       } catch (Throwable e) {
         e.printStackTrace();
         throw new RuntimeException(e);
@@ -99,30 +128,123 @@ final class SocketServer implements Server {
     }
   }
 
+  /**
+   * Accepts connections until the server is stopped, handshaking and echoing each one on its own
+   * thread. With a {@link HandshakePool}, the handshake runs on the pool instead and the echo
+   * thread is only started once it has finished.
+   */
+  private final class AcceptLoopTask implements Runnable {
+    @Override
+    public void run() {
+      HandshakePool handshakePool = options.handshakePool();
+      try {
+        while (true) {
+          SSLSocket sslSocket = accept();
+          if (handshakePool == null) {
+            executor.submit(() -> {
+              if (handshakeOrClose(sslSocket)) {
+                new EchoTask(sslSocket).run();
+              }
+            });
+          } else if (!handshakePool.submit(sslSocket, deadline -> {
+            if (!handshakeOrClose(sslSocket)) {
+              return false;
+            }
+            if (!deadline.disarm()) {
+              // The pool closed the socket just as the handshake finished.
+              sockets.remove(sslSocket);
+              return false;
+            }
+            executor.submit(new EchoTask(sslSocket));
+            return true;
+          })) {
+            sockets.remove(sslSocket);
+            sslSocket.close();
+          }
+        }
+      } catch (Throwable e) {
+        if (!stopped) {
+          e.printStackTrace();
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Handshakes a connection from a thread-per-connection server, closing it if that fails or if
+   * the client stops sending for longer than {@link #HANDSHAKE_TIMEOUT_MILLIS}. A failed handshake
+   * only loses that one connection; the handshake pool counts it.
+   *
+   * @return {@code false} if the handshake failed.
+   */
+  private boolean handshakeOrClose(SSLSocket sslSocket) {
+    try {
+      sslSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      handshake(sslSocket);
+      sslSocket.setSoTimeout(0);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      sockets.remove(sslSocket);
+      try {
+        sslSocket.close();
+      } catch (IOException ignored) {
+        // Ignored.
+      }
+      return false;
+    }
+  }
+
   private final class EchoTask implements Runnable {
+    private final SSLSocket sslSocket;
+    private final byte[] buffer = new byte[messageLength];
+    private InputStream in;
+    private OutputStream out;
+
+    EchoTask(SSLSocket sslSocket) {
+      this.sslSocket = sslSocket;
+    }
+
     @Override
     public void run() {
       try {
-        readMessage();
-        reply();
+        in = sslSocket.getInputStream();
+        out = sslSocket.getOutputStream();
+        // Echo messages until the client goes away or the server is stopped.
+        while (readMessage()) {
+          reply();
+        }
+        sslSocket.close();
       } catch (Throwable e) {
-        throw new RuntimeException(e);
+        if (!stopped) {
+          throw new RuntimeException(e);
+        }
+      } finally {
+        sockets.remove(sslSocket);
       }
     }
 
-    private void readMessage() {
+    /**
+     * Reads a single message.
+     *
+     * @return {@code false} if the client closed the connection instead of sending a message.
+     */
+    private boolean readMessage() {
       try {
-        byte[] buffer = new byte[MESSAGE_LENGTH];
         int totalRead = 0;
-        while (totalRead < MESSAGE_LENGTH) {
-          int bytesRead =
-              sslSocket.getInputStream().read(buffer, totalRead, MESSAGE_LENGTH - totalRead);
+        while (totalRead < messageLength) {
+          int bytesRead = in.read(buffer, totalRead, messageLength - totalRead);
           if (bytesRead == -1) {
+            if (totalRead == 0) {
+              return false;
+            }
             throw new EOFException();
           }
           totalRead += bytesRead;
         }
-        assertArrayEquals(messageBytes(), buffer);
+        // Unlike assertArrayEquals, this doesn't box every byte.
+        assertTrue("Unexpected message", Arrays.equals(message, buffer));
+        return true;
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
@@ -130,8 +252,8 @@ final class SocketServer implements Server {
 
     private void reply() {
       try {
-        sslSocket.getOutputStream().write(messageBytes());
-        sslSocket.getOutputStream().flush();
+        out.write(message);
+        out.flush();
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
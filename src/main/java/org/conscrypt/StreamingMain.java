@@ -0,0 +1,83 @@
+package org.conscrypt;
+
+import com.sun.management.OperatingSystemMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a large amount of data over a single connection in fixed-size chunks and reports the
+ * throughput, both in absolute terms and per core of CPU time the process used. The client sends
+ * chunks back to back while reading their echoes on another thread, so data flows in both
+ * directions at once and the figures are per direction. Both endpoints run in this process, so the
+ * CPU time covers encrypting and decrypting every byte twice.
+ *
+ * <p>Arguments (all optional): megabytes to stream, chunk size in bytes, and the
+ * {@link Payload}.
+ */
+public class StreamingMain {
+  private static final long WARMUP_MEGABYTES = 256;
+
+  public static void main(String[] args) {
+    try {
+      long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 2048;
+      int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+      Payload payload = args.length > 2 ? Payload.valueOf(args[2]) : Payload.TEXT;
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        for (EndpointType endpointType : EndpointType.values()) {
+          EndpointOptions options =
+              new EndpointOptions().messageLength(chunkSize).payload(payload);
+          EndpointFactory factory = endpointType.newFactory(provider.newProvider(), options);
+          Server server = factory.newServer(false);
+          Future<?> serverStartFuture = server.start();
+          Client client = factory.newClient(server.port(), false);
+          try {
+            TestUtils.wait(client.start());
+            TestUtils.wait(serverStartFuture);
+
+            stream(client, WARMUP_MEGABYTES * 1024 * 1024 / chunkSize);
+            long chunks = megabytes * 1024 * 1024 / chunkSize;
+            long cpuStart = processCpuNanos();
+            long start = System.nanoTime();
+            stream(client, chunks);
+            long nanos = System.nanoTime() - start;
+            long cpuNanos = processCpuNanos() - cpuStart;
+
+            double megabytesPerSecond =
+                chunks * chunkSize / (1024.0 * 1024) / nanos * TimeUnit.SECONDS.toNanos(1);
+            double cores = (double) cpuNanos / nanos;
+            System.err.println(String.format("provider=%s, endpoint=%s, chunkSize=%d, "
+                    + "payload=%s: %.1f MB/s, %.2f cores, %.1f MB/s per core",
+                provider, endpointType, chunkSize, payload, megabytesPerSecond, cores,
+                megabytesPerSecond / cores));
+          } finally {
+            client.stop();
+            server.stop();
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  static void stream(Client client, long chunks) {
+    // Echoes are read one batch at a time so that the count fits in an int.
+    while (chunks > 0) {
+      int batch = (int) Math.min(chunks, Integer.MAX_VALUE);
+      Future<?> replies = client.readReplies(batch, index -> {});
+      for (int i = 0; i < batch; i++) {
+        client.sendMessage();
+      }
+      TestUtils.wait(replies);
+      chunks -= batch;
+    }
+  }
+
+  private static long processCpuNanos() {
+    return ((OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+        .getProcessCpuTime();
+  }
+}
@@ -0,0 +1,51 @@
+package org.conscrypt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects endpoints through TCP sockets on localhost.
+ */
+final class TcpTransport implements Transport {
+  static final TcpTransport INSTANCE = new TcpTransport();
+
+  @Override
+  public Listener listen() throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress("localhost", 0));
+    return new Listener() {
+      @Override
+      public int port() {
+        return serverChannel.socket().getLocalPort();
+      }
+
+      @Override
+      public ByteChannel accept() throws IOException {
+        return configure(serverChannel.accept());
+      }
+
+      @Override
+      public void close() throws IOException {
+        serverChannel.close();
+      }
+    };
+  }
+
+  @Override
+  public ByteChannel connect(int port) throws IOException {
+    return configure(SocketChannel.open(new InetSocketAddress("localhost", port)));
+  }
+
+  private static SocketChannel configure(SocketChannel channel) throws IOException {
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel.configureBlocking(false);
+    return channel;
+  }
+
+  private TcpTransport() {
+  }
+}
@@ -1,45 +1,21 @@
 package org.conscrypt;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.BaseEncoding;
-import com.google.common.io.CharStreams;
-import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.KeyException;
-import java.security.KeyFactory;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
 import java.security.Provider;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
-import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
-import javax.security.auth.x500.X500Principal;
 
 /**
  * Common utility functions useful for writing tests.
@@ -51,12 +27,27 @@ class TestUtils {
   private static final ByteBuffer MESSAGE_BUFFER =
       ByteBuffer.wrap(MESSAGE_BYTES).asReadOnlyBuffer();
   static final int MESSAGE_LENGTH = MESSAGE_BYTES.length;
+  private static final Map<Payload, ConcurrentMap<Integer, byte[]>> MESSAGES =
+      new EnumMap<>(Payload.class);
+  private static final Map<Payload, ConcurrentMap<Integer, ByteBuffer>> DIRECT_MESSAGES =
+      new EnumMap<>(Payload.class);
+  private static final Map<Role, ConcurrentMap<List<Object>, SSLContext>> CONTEXTS =
+      new EnumMap<>(Role.class);
+
+  static {
+    for (Payload payload : Payload.values()) {
+      MESSAGES.put(payload, new ConcurrentHashMap<>());
+      DIRECT_MESSAGES.put(payload, new ConcurrentHashMap<>());
+    }
+    for (Role role : Role.values()) {
+      CONTEXTS.put(role, new ConcurrentHashMap<>());
+    }
+  }
 
-  private static final Pattern KEY_PATTERN = Pattern.compile(
-      "-+BEGIN\\s+.*PRIVATE\\s+KEY[^-]*-+(?:\\s|\\r|\\n)+" + // Header
-          "([a-z0-9+/=\\r\\n]+)" +                       // Base64 text
-          "-+END\\s+.*PRIVATE\\s+KEY[^-]*-+",            // Footer
-      Pattern.CASE_INSENSITIVE);
+  enum Role {
+    CLIENT,
+    SERVER
+  }
 
   static ByteBuffer newMessage() {
     return MESSAGE_BUFFER.duplicate();
@@ -67,27 +58,44 @@ class TestUtils {
   }
 
   /**
-   * Saves a file from the classpath resources in src/main/resources/certs as a file on the
-   * filesystem.
-   *
-   * @param name name of a file in src/main/resources/certs.
+   * Returns a read-only message with the given content and length.
    */
-  static File loadCert(String name) throws IOException {
-    InputStream in = TestUtils.class.getResourceAsStream("/certs/" + name);
-    File tmpFile = File.createTempFile(name, "");
-    tmpFile.deleteOnExit();
+  static ByteBuffer newMessage(Payload payload, int length) {
+    return ByteBuffer.wrap(messageBytes(payload, length)).asReadOnlyBuffer();
+  }
 
-    BufferedWriter writer = new BufferedWriter(new FileWriter(tmpFile));
-    try {
-      int b;
-      while ((b = in.read()) != -1) {
-        writer.write(b);
-      }
-    } finally {
-      writer.close();
+  /**
+   * Like {@link #newMessage(Payload, int)}, but backed by native memory that is shared by all
+   * messages with the same content and length.
+   */
+  static ByteBuffer newDirectMessage(Payload payload, int length) {
+    ConcurrentMap<Integer, ByteBuffer> messages = DIRECT_MESSAGES.get(payload);
+    ByteBuffer message = messages.get(length);
+    if (message == null) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+      buffer.put(messageBytes(payload, length)).flip();
+      messages.putIfAbsent(length, buffer.asReadOnlyBuffer());
+      message = messages.get(length);
     }
+    return message.duplicate();
+  }
 
-    return tmpFile;
+  /**
+   * Returns the bytes of a message with the given content and length. The returned array is
+   * shared and must not be modified.
+   */
+  static byte[] messageBytes(Payload payload, int length) {
+    if (payload == Payload.TEXT && length == MESSAGE_LENGTH) {
+      return MESSAGE_BYTES;
+    }
+    ConcurrentMap<Integer, byte[]> messages = MESSAGES.get(payload);
+    byte[] bytes = messages.get(length);
+    if (bytes == null) {
+      bytes = new byte[length];
+      payload.fill(bytes);
+      messages.putIfAbsent(length, bytes);
+    }
+    return bytes;
   }
 
   static void wait(Future<?> future) {
@@ -98,99 +106,66 @@ class TestUtils {
     }
   }
 
-  static SSLContext newClientContext(Provider provider) {
-    try {
-      File certChainFile = loadCert("ca.pem");
-      KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-      ks.load(null, null);
-      CertificateFactory cf = CertificateFactory.getInstance("X.509");
-      X509Certificate cert = (X509Certificate) cf.generateCertificate(
-          new BufferedInputStream(new FileInputStream(certChainFile)));
-      X500Principal principal = cert.getSubjectX500Principal();
-      ks.setCertificateEntry(principal.getName("RFC2253"), cert);
-
-      // Set up trust manager factory to use our key store.
-      TrustManagerFactory trustManagerFactory =
-          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-      trustManagerFactory.init(ks);
-      SSLContext context = SSLContext.getInstance("TLS", provider);
-      context.init(null, trustManagerFactory.getTrustManagers(), null);
-      return context;
-    } catch (IOException | KeyStoreException | NoSuchAlgorithmException | KeyManagementException
-        | CertificateException e) {
-      throw new RuntimeException(e);
+  static SSLContext cachedContext(Provider provider, Role role) {
+    return cachedContext(provider, role, KeyMaterial.get());
+  }
+
+  /**
+   * Returns the innermost cause of an exception, which for failures that {@link #wait} rethrows is
+   * the one that actually went wrong.
+   */
+  static Throwable rootCause(Throwable t) {
+    while (t.getCause() != null) {
+      t = t.getCause();
     }
+    return t;
   }
 
-  static SSLContext newServerContext(Provider provider) {
+  /**
+   * Returns a context for the given provider, role and key material from a process-wide cache,
+   * creating it on first use. Everyone who asks for the same provider name, role and key material
+   * shares the context, and with it the context's session cache.
+   */
+  static SSLContext cachedContext(Provider provider, Role role, KeyMaterial keyMaterial) {
+    ConcurrentMap<List<Object>, SSLContext> contexts = CONTEXTS.get(role);
+    List<Object> key = Arrays.asList(provider.getName(), keyMaterial);
+    SSLContext context = contexts.get(key);
+    if (context == null) {
+      context = role == Role.CLIENT ? newClientContext(provider, keyMaterial)
+                                    : newServerContext(provider, keyMaterial);
+      SSLContext existing = contexts.putIfAbsent(key, context);
+      if (existing != null) {
+        context = existing;
+      }
+    }
+    return context;
+  }
+
+  static SSLContext newClientContext(Provider provider) {
+    return newClientContext(provider, KeyMaterial.get());
+  }
+
+  static SSLContext newClientContext(Provider provider, KeyMaterial keyMaterial) {
     try {
-      File certChainFile = TestUtils.loadCert("server1.pem");
-      File keyFile = TestUtils.loadCert("server1.key");
-
-      KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-      ks.load(null, null);
-
-      // Read the cert.
-      CertificateFactory cf = CertificateFactory.getInstance("X.509");
-      X509Certificate cert = (X509Certificate) cf.generateCertificate(
-          new BufferedInputStream(new FileInputStream(certChainFile)));
-
-      // Read the private key.
-      byte[] keyData = readPrivateKey(keyFile);
-      KeySpec keySpec = new PKCS8EncodedKeySpec(keyData);
-      PrivateKey key = KeyFactory.getInstance("RSA").generatePrivate(keySpec);
-
-      ks.setKeyEntry("key", key, new char[0], new Certificate[] {cert});
-      KeyManagerFactory kmf =
-          KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-      kmf.init(ks, new char[0]);
-
-      // Set up trust manager factory to use our key store.
-      TrustManagerFactory trustManagerFactory =
-          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-      trustManagerFactory.init(ks);
       SSLContext context = SSLContext.getInstance("TLS", provider);
-      context.init(kmf.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+      context.init(null, keyMaterial.clientTrustManagers(), null);
       return context;
-    } catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException
-        | KeyException | InvalidKeySpecException | UnrecoverableKeyException e) {
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
       throw new RuntimeException(e);
     }
   }
 
-  private static byte[] readPrivateKey(File file) throws KeyException {
-    String content = readPemFileContent(file);
-
-    Matcher m = KEY_PATTERN.matcher(content);
-    if (!m.find()) {
-      throw new KeyException("could not find a PKCS #8 private key in input stream" +
-          " (see http://netty.io/wiki/sslcontextbuilder-and-private-key.html for more information)");
-    }
-
-    String data = m.group(1).replace("\n", "");
-    return BaseEncoding.base64().decode(data);
+  static SSLContext newServerContext(Provider provider) {
+    return newServerContext(provider, KeyMaterial.get());
   }
 
-  private static String readPemFileContent(File file) {
-    InputStream in = null;
-    Reader reader = null;
+  static SSLContext newServerContext(Provider provider, KeyMaterial keyMaterial) {
     try {
-      in = new FileInputStream(file);
-      reader = new InputStreamReader(in, Charsets.US_ASCII);
-      return CharStreams.toString(reader);
-    } catch (IOException e) {
+      SSLContext context = SSLContext.getInstance("TLS", provider);
+      context.init(keyMaterial.serverKeyManagers(), keyMaterial.serverTrustManagers(), null);
+      return context;
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        if (in != null) {
-          in.close();
-        }
-        if (reader != null) {
-          reader.close();
-        }
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
     }
   }
 
@@ -0,0 +1,30 @@
+package org.conscrypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+
+/**
+ * How engine-based endpoints connect to each other. Every channel a transport hands out is in
+ * non-blocking mode; {@link EngineWrapper} takes care of waiting for it.
+ */
+interface Transport {
+  /**
+   * Starts listening for connections on a new port.
+   */
+  Listener listen() throws IOException;
+
+  /**
+   * Connects to the listener on the given port.
+   */
+  ByteChannel connect(int port) throws IOException;
+
+  interface Listener extends Closeable {
+    int port();
+
+    /**
+     * Blocks until a client connects. Closing the listener makes any pending call throw.
+     */
+    ByteChannel accept() throws IOException;
+  }
+}
@@ -0,0 +1,126 @@
+package org.conscrypt;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures echo throughput of blocking {@link SocketServer}s and {@link SocketClient}s with one
+ * thread per connection, on virtual or platform threads, as the number of concurrent connections
+ * grows. Every connection keeps exactly one message in flight. The output has the same shape as
+ * {@link EventLoopScalingMain}'s, for comparison with the non-blocking engine path.
+ *
+ * <p>In virtual mode, a dump of all threads is taken during each measurement to flag virtual
+ * threads stuck in Conscrypt's native socket I/O. A blocking call in a native frame can't unmount,
+ * so each of them pins a carrier thread; once all carriers are pinned, every other connection
+ * stalls. Pinning in {@code synchronized} blocks is reported by the JDK itself when run with
+ * {@code -Djdk.tracePinnedThreads=full}.
+ *
+ * <p>Requires building with the {@code jdk21} Maven profile for virtual mode, and enough file
+ * descriptors for two sockets per connection.
+ *
+ * <p>Arguments (all optional): {@code virtual} or {@code platform}, measurement seconds per step,
+ * and a comma-separated list of connection counts.
+ */
+public class VirtualThreadScalingMain {
+  private static final long WARMUP_SECONDS = 2;
+  private static final String NATIVE_IO_FRAME = "NativeCrypto.SSL_";
+
+  public static void main(String[] args) {
+    try {
+      boolean virtual = args.length == 0 || args[0].equals("virtual");
+      int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+      String[] counts = (args.length > 2 ? args[2] : "1,10,100,1000,10000").split(",");
+
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        System.err.println(
+            "provider=" + provider + ", threads=" + (virtual ? "virtual" : "platform"));
+        System.err.println("connections\tmsgs/s\tplatformThreads\tpinnedInNative");
+        for (String count : counts) {
+          measure(provider, virtual, Integer.parseInt(count), seconds);
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  private static void measure(BenchmarkProvider provider, boolean virtual, int connections,
+      int seconds) throws InterruptedException {
+    EndpointOptions options = new EndpointOptions()
+        .threadPerConnection(true)
+        .virtualThreads(virtual)
+        .shareClientContext(true);
+    EndpointFactory factory = new SocketEndpointFactory(provider.newProvider(), options);
+    Server server = factory.newServer(false);
+    server.start();
+
+    ExecutorService executor = virtual
+        ? VirtualThreads.newThreadPerTaskExecutor("driver-")
+        : Executors.newCachedThreadPool();
+    List<Client> clients = new ArrayList<>(connections);
+    CountDownLatch handshakes = new CountDownLatch(connections);
+    LongAdder replies = new LongAdder();
+    try {
+      for (int i = 0; i < connections; i++) {
+        Client client = factory.newClient(server.port(), false);
+        clients.add(client);
+        executor.submit(() -> {
+          TestUtils.wait(client.start());
+          handshakes.countDown();
+          // Runs until stopping the client makes the next read or write fail.
+          while (true) {
+            client.sendMessage();
+            TestUtils.wait(client.readReply());
+            replies.increment();
+          }
+        });
+      }
+      if (!handshakes.await(5, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("Timed out waiting for handshakes");
+      }
+
+      TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+      long start = System.nanoTime();
+      long before = replies.sum();
+      TimeUnit.SECONDS.sleep(seconds);
+      long count = replies.sum() - before;
+      double rate = count / ((System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1));
+      int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+      String pinned = virtual ? Integer.toString(countPinnedInNative()) : "-";
+      System.err.println(
+          String.format("%d\t%.0f\t%d\t%s", connections, rate, platformThreads, pinned));
+      if (count == 0) {
+        System.err.println("WARNING: no progress, all carrier threads may be pinned");
+      }
+    } finally {
+      for (Client client : clients) {
+        client.stop();
+      }
+      server.stop();
+      executor.shutdownNow();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Counts the virtual threads that are currently inside Conscrypt's native SSL I/O.
+   */
+  private static int countPinnedInNative() {
+    int pinned = 0;
+    // Threads are separated by blank lines, each starting with a header like: #42 "" virtual
+    for (String thread : VirtualThreads.dumpThreads().split("\\R\\R")) {
+      String header = thread.trim().split("\\R", 2)[0];
+      if (header.endsWith(" virtual") && thread.contains(NATIVE_IO_FRAME)) {
+        pinned++;
+      }
+    }
+    return pinned;
+  }
+}
@@ -0,0 +1,72 @@
+package org.conscrypt;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads from code that still builds for Java 8. The implementation is in
+ * src/main/java21 and only exists when the project was built with the {@code jdk21} Maven
+ * profile on JDK 21 or newer; otherwise every method but {@link #isAvailable()} throws
+ * {@link UnsupportedOperationException}.
+ */
+final class VirtualThreads {
+  private static final Class<?> SUPPORT = findSupport();
+
+  static boolean isAvailable() {
+    return SUPPORT != null;
+  }
+
+  /**
+   * Returns a factory for virtual threads named with the given prefix and a counter.
+   */
+  static ThreadFactory newThreadFactory(String namePrefix) {
+    return (ThreadFactory) invoke("newThreadFactory", namePrefix);
+  }
+
+  /**
+   * Returns an executor that runs every task on a new virtual thread.
+   */
+  static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    return (ExecutorService) invoke("newThreadPerTaskExecutor", namePrefix);
+  }
+
+  /**
+   * Returns a plain-text dump of the stacks of all threads, including virtual ones.
+   */
+  static String dumpThreads() {
+    return (String) invoke("dumpThreads");
+  }
+
+  private static Object invoke(String name, Object... args) {
+    if (SUPPORT == null) {
+      throw new UnsupportedOperationException(
+          "Virtual threads require building with the jdk21 profile on JDK 21 or newer");
+    }
+    try {
+      Class<?>[] types = new Class<?>[args.length];
+      for (int i = 0; i < args.length; i++) {
+        types[i] = args[i].getClass();
+      }
+      Method method = SUPPORT.getDeclaredMethod(name, types);
+      return method.invoke(null, args);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static Class<?> findSupport() {
+    try {
+      return Class.forName("org.conscrypt.VirtualThreadSupport");
+    } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+      // Not built with the jdk21 profile, or built with it but running on an older JVM.
+      return null;
+    }
+  }
+
+  private VirtualThreads() {
+  }
+}
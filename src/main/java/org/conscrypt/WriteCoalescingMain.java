@@ -0,0 +1,68 @@
+package org.conscrypt;
+
+import java.util.concurrent.TimeUnit;
+import org.conscrypt.PhaseHistograms.Phase;
+
+/**
+ * Compares how an {@link EngineEventLoopServer} writes its replies when a client pipelines bursts
+ * of small messages: each reply wrapped and written on its own, or the replies to a read batched
+ * with each {@link FlushPolicy}. Reports the echo rate and, per message, how many records the
+ * server wrapped and how many writes it made, counted through its {@link PhaseHistograms}.
+ *
+ * <p>Arguments (all optional): messages per run, the message length, and the
+ * {@link FlushPolicy#SIZE_THRESHOLD} threshold in bytes.
+ */
+public class WriteCoalescingMain {
+  private static final int WARMUP_MESSAGES = 100000;
+
+  public static void main(String[] args) {
+    try {
+      int messages = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+      int messageLength = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+      int flushThreshold = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+
+      FlushPolicy[] policies = {null, FlushPolicy.IMMEDIATE, FlushPolicy.SIZE_THRESHOLD,
+          FlushPolicy.END_OF_TICK};
+      for (BenchmarkProvider provider : BenchmarkProvider.values()) {
+        System.err.println(String.format("provider=%s, messageLength=%d, flushThreshold=%d",
+            provider, messageLength, flushThreshold));
+        System.err.println("policy\tmsgs/s\trecords/msg\twrites/msg");
+        for (FlushPolicy policy : policies) {
+          PhaseHistograms phases = new PhaseHistograms();
+          EndpointOptions serverOptions = new EndpointOptions()
+              .messageLength(messageLength)
+              .eventLoopThreads(1)
+              .flushPolicy(policy)
+              .flushThreshold(flushThreshold)
+              .phaseHistograms(phases);
+          Server server =
+              new EngineEndpointFactory(provider.newProvider(), serverOptions).newServer(false);
+          TestUtils.wait(server.start());
+          Client client = new EngineEndpointFactory(provider.newProvider(),
+              new EndpointOptions().messageLength(messageLength)).newClient(server.port(), false);
+          try {
+            TestUtils.wait(client.start());
+
+            StreamingMain.stream(client, WARMUP_MESSAGES);
+            phases.reset();
+            long start = System.nanoTime();
+            StreamingMain.stream(client, messages);
+            long nanos = System.nanoTime() - start;
+
+            System.err.println(String.format("%s\t%.0f\t%.3f\t%.3f",
+                policy != null ? policy : "UNBATCHED",
+                messages / (nanos / (double) TimeUnit.SECONDS.toNanos(1)),
+                (double) phases.snapshot(Phase.WRAP).count() / messages,
+                (double) phases.snapshot(Phase.CHANNEL_WRITE).count() / messages));
+          } finally {
+            client.stop();
+            server.stop();
+          }
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package org.conscrypt;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.HotSpotDiagnosticMXBean.ThreadDumpFormat;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The JDK 21 side of {@link VirtualThreads}, only compiled by the {@code jdk21} Maven profile.
+ * {@link VirtualThreads} calls it reflectively.
+ */
+final class VirtualThreadSupport {
+  static ThreadFactory newThreadFactory(String namePrefix) {
+    return Thread.ofVirtual().name(namePrefix, 0).factory();
+  }
+
+  static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+    return Executors.newThreadPerTaskExecutor(newThreadFactory(namePrefix));
+  }
+
+  /**
+   * Returns a plain-text dump of all threads, including virtual ones, which
+   * {@link Thread#getAllStackTraces()} leaves out.
+   */
+  static String dumpThreads() throws IOException {
+    Path directory = Files.createTempDirectory("threads");
+    Path file = directory.resolve("dump.txt");
+    try {
+      ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+          .dumpThreads(file.toAbsolutePath().toString(), ThreadDumpFormat.TEXT_PLAIN);
+      return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    } finally {
+      Files.deleteIfExists(file);
+      Files.delete(directory);
+    }
+  }
+
+  private VirtualThreadSupport() {
+  }
+}